@@ -55,3 +55,4 @@ export const KEYCLOAK_USER_ACCOUNT_CONSOLE_LINK = `${VUE_APP_USER_ACCOUNT_CONSOL
 
 export const DEFAULT_REQUEST_TIMEOUT = 30 * 1000 // in ms
 export const DEFAULT_REQUEST_RETRY_TIME = 1500 // milliseconds until a request retry will be performed
+export const CLIENTS_PAGE_SIZE = 100 // number of clients requested at once
@@ -26,4 +26,8 @@ export interface IClient extends IWritableClient {
   directAccessGrantsEnabled: boolean;
   serviceAccountsEnabled: boolean;
   authorizationServicesEnabled: boolean;
+
+  // usage statistics, only returned if requested via fields
+  lastUsed?: number;
+  loginsLast30Days?: number;
 }
@@ -1,7 +1,11 @@
 /* eslint-disable @typescript-eslint/no-unsafe-return */ // disabled as otherwise we cannot return typed responses
 import axios, { AxiosResponse, CancelToken } from 'axios'
 
-import { DEFAULT_REQUEST_TIMEOUT, IDP_URL } from 'src/app-constants'
+import {
+  CLIENTS_PAGE_SIZE,
+  DEFAULT_REQUEST_TIMEOUT,
+  IDP_URL,
+} from 'src/app-constants'
 import { IClient, IWritableClient } from 'src/definitions/Client'
 import { BaseAPI } from 'src/requestAPI/BaseAPI'
 
@@ -43,6 +47,41 @@ export class KeycloakRequestAPI extends BaseAPI {
     })
   }
 
+  /**
+   * Loads all clients of the user by requesting one page after the other.
+   *
+   * @param sort: field to sort by, prefixed with '-' for descending order
+   * @param fields: fields to load, all if not set. The id is always included.
+   * @param query: search term, matched by the server against client ID, name, description,
+   *               redirect URIs and web origins. All clients are loaded if not set.
+   */
+  public static async clientsGetAll(
+    sort = 'clientId',
+    fields?: (keyof IClient)[],
+    query?: string,
+    cancelToken?: CancelToken,
+  ): Promise<IClient[]> {
+    const clients: IClient[] = []
+    while (true) {
+      const resp = await this.clientsGet(
+        {
+          first: clients.length,
+          max: CLIENTS_PAGE_SIZE,
+          sort,
+          ...(fields ? { fields: fields.join(',') } : {}),
+          ...(query ? { q: query } : {}),
+        },
+        cancelToken,
+      )
+      clients.push(...resp.data)
+
+      const total = +resp.headers['x-total-count']
+      if (resp.data.length === 0 || isNaN(total) || clients.length >= total) {
+        return clients
+      }
+    }
+  }
+
   public static async clientGet(
     clientUuid: string,
     params?: Record<string, unknown>,
@@ -108,9 +147,16 @@ export class KeycloakRequestAPI extends BaseAPI {
     })
   }
 
+  /**
+   * Updates a client.
+   *
+   * @param etag: ETag of the client as loaded before. If set, the update fails in case the client
+   *              has been modified in the meantime.
+   */
   public static async clientUpdate(
     clientUuid: string,
     data: IWritableClient,
+    etag?: string,
     params?: Record<string, unknown>,
     cancelToken?: CancelToken,
   ): Promise<AxiosResponse<IClient>> {
@@ -119,6 +165,7 @@ export class KeycloakRequestAPI extends BaseAPI {
     return this.networkResultWrapper(() => {
       const header = {
         Authorization: `Bearer ${this.token}`,
+        ...(etag ? { 'If-Match': etag } : {}),
       }
       return axios.put(
         requestURL,
@@ -159,6 +206,7 @@ export class KeycloakRequestAPI extends BaseAPI {
 
   public static async clientDelete(
     clientUuid: string,
+    etag?: string,
     params?: Record<string, unknown>,
     cancelToken?: CancelToken,
   ): Promise<AxiosResponse<IClient>> {
@@ -167,6 +215,7 @@ export class KeycloakRequestAPI extends BaseAPI {
     return this.networkResultWrapper(() => {
       const header = {
         Authorization: `Bearer ${this.token}`,
+        ...(etag ? { 'If-Match': etag } : {}),
       }
       return axios.delete(
         requestURL,
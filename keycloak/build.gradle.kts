@@ -14,6 +14,8 @@ plugins {
     // Apply the java-library plugin for API and implementation separation.
     `java-library`
     checkstyle
+    // benchmarks in src/jmh, run via "gradle jmh"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 repositories {
@@ -26,6 +28,14 @@ dependencies {
     implementation("org.keycloak:keycloak-server-spi:$keycloakVersion")
     implementation("org.keycloak:keycloak-server-spi-private:$keycloakVersion")
     implementation("org.keycloak:keycloak-core:$keycloakVersion")
+    implementation("org.keycloak:keycloak-model-jpa:$keycloakVersion")
+    // provided by the Keycloak distribution (Quarkus metrics)
+    compileOnly("io.micrometer:micrometer-core:1.15.4")
+
+    // provided by the Keycloak distribution, but required to run the resources outside of Keycloak
+    jmhImplementation("org.jboss.resteasy:resteasy-core:6.2.12.Final")
+    jmhRuntimeOnly("org.keycloak:keycloak-saml-core:$keycloakVersion")
+    jmhRuntimeOnly("io.micrometer:micrometer-core:1.15.4")
 }
 
 // Apply a specific Java toolchain to ease working on different environments.
@@ -35,6 +45,43 @@ java {
     }
 }
 
+// Benchmarks of the hot paths, allocation rates are reported via the GC profiler.
+// Run e.g. "gradle jmh -Pjmh.includes=UtilBenchmark" to run only some of them.
+jmh {
+    jmhVersion = "1.37"
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    // the scale benchmarks fail if a request exceeds its budget of model calls
+    failOnError = true
+    if (project.hasProperty("jmh.includes")) {
+        includes = listOf(project.property("jmh.includes") as String)
+    }
+}
+
 tasks.jar {
     archiveBaseName = "self-service-clients"
 }
+
+// the benchmark jar contains the whole Keycloak server classpath
+tasks.jmhJar {
+    isZip64 = true
+}
+
+// Checks the model call budgets of the scale benchmarks with a single short iteration, so "gradle check" (and therefore
+// "gradle build") fails on regressions. The timings of this run are meaningless.
+val jmhBudgets by tasks.registering(JavaExec::class) {
+    group = "verification"
+    description = "Checks the model call budgets of the scale benchmarks."
+    classpath = files(tasks.jmhJar)
+    mainClass = "org.openjdk.jmh.Main"
+    args = listOf("ScaleBenchmark", "-f", "0", "-wi", "0", "-i", "1", "-r", "1s", "-foe", "true")
+    javaLauncher = javaToolchains.launcherFor {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
+tasks.check {
+    dependsOn(jmhBudgets)
+}
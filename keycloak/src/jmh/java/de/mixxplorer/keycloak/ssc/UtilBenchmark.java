@@ -0,0 +1,55 @@
+package de.mixxplorer.keycloak.ssc;
+
+import de.mixxplorer.keycloak.ssc.harness.Fakes;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Access checks run once per listed client, so they should neither be slow nor allocate
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UtilBenchmark {
+    private UserModel user;
+    private String manageAttribute;
+    private ClientModel ownedClient;
+    private ClientModel foreignClient;
+
+    @Setup
+    public void setup() {
+        user = Fakes.user("0b4b4c0e-6f0a-4d64-8d2c-1d4c3f5e6a7b");
+        manageAttribute = Util.getUserManageClientAttributeName(user);
+        ownedClient = Fakes.client("owned", "ssc-owned", Fakes.clientAttributes(user.getId(), "other-user"));
+        foreignClient = Fakes.client("foreign", "ssc-foreign", Fakes.clientAttributes("other-user"));
+    }
+
+    @Benchmark
+    public boolean hasUserAccessToOwnedClient() {
+        return Util.hasUserAccessToClient(ownedClient, user);
+    }
+
+    @Benchmark
+    public boolean hasUserAccessToForeignClient() {
+        return Util.hasUserAccessToClient(foreignClient, user);
+    }
+
+    // variant used when filtering lists of clients
+    @Benchmark
+    public boolean hasUserAccessToOwnedClientByAttributeName() {
+        return Util.hasUserAccessToClient(ownedClient, manageAttribute);
+    }
+
+    @Benchmark
+    public Map<String, String> getUserManageClientAttributeMap() {
+        return Util.getUserManageClientAttributeMap(user);
+    }
+}
@@ -0,0 +1,75 @@
+package de.mixxplorer.keycloak.ssc.harness;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import org.keycloak.authorization.AuthorizationProvider;
+import org.keycloak.authorization.AuthorizationProviderFactory;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.common.Profile;
+import org.keycloak.common.profile.CommaSeparatedListProfileConfigResolver;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.http.HttpResponse;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// Session of a single request against an in-memory realm. The only provider is the JPA connection, whose entity
+// manager answers the queries of the ownership index of the realm (see InMemoryOwnershipIndex). Code paths using
+// other database queries cannot be driven with it.
+public class FakeSession {
+    private final KeycloakSession session;
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    public FakeSession(InMemoryRealm realm, UserModel... users) {
+        // default features, as without a server, but authorization services would need a store
+        Profile.configure(new CommaSeparatedListProfileConfigResolver(null, String.join(",",
+                Profile.Feature.AUTHORIZATION.getUnversionedKey(), Profile.Feature.ADMIN_FINE_GRAINED_AUTHZ_V2.getUnversionedKey())));
+
+        final HttpHeaders headers = Fakes.fake(HttpHeaders.class, null, Map.of());
+        final HttpResponse response = Fakes.fake(HttpResponse.class, null, Map.of());
+        final ClientConnection connection = Fakes.fake(ClientConnection.class, null, Map.<String, Function<Object[], Object>>of(
+                "getRemoteHost", args -> "127.0.0.1"));
+        final KeycloakContext context = Fakes.fake(KeycloakContext.class, null, Map.<String, Function<Object[], Object>>of(
+                "getRealm", args -> realm.getRealm(),
+                "getConnection", args -> connection,
+                "getRequestHeaders", args -> headers,
+                "getHttpResponse", args -> response
+        ));
+        // admin permissions only need the authorization provider factory to exist, as long as they are not evaluated
+        final AuthorizationProviderFactory authorizationProviderFactory = Fakes.fake(AuthorizationProviderFactory.class,
+                null, Map.of());
+        final KeycloakSessionFactory sessionFactory = Fakes.fake(KeycloakSessionFactory.class, null,
+                Map.<String, Function<Object[], Object>>of("getProviderFactory",
+                        args -> args[0] == AuthorizationProvider.class ? authorizationProviderFactory : null));
+        final Map<String, UserModel> usersById = Arrays.stream(users).collect(Collectors.toMap(UserModel::getId, user -> user));
+        final UserProvider userProvider = Fakes.fake(UserProvider.class, null, Map.<String, Function<Object[], Object>>of(
+                "getUserById", args -> usersById.get((String) args[1])));
+        final JpaConnectionProvider jpaConnectionProvider = Fakes.fake(JpaConnectionProvider.class, null,
+                Map.<String, Function<Object[], Object>>of(
+                        "getEntityManager", args -> realm.getOwnershipIndex().getEntityManager()));
+        final KeycloakTransactionManager transactionManager = Fakes.fake(KeycloakTransactionManager.class, null, Map.of());
+
+        this.session = Fakes.fake(KeycloakSession.class, null, Map.<String, Function<Object[], Object>>of(
+                "getContext", args -> context,
+                "getKeycloakSessionFactory", args -> sessionFactory,
+                "getTransactionManager", args -> transactionManager,
+                "users", args -> userProvider,
+                "getProvider", args -> args[0] == JpaConnectionProvider.class ? jpaConnectionProvider : null,
+                "getAttribute", args -> attributes.get((String) args[0]),
+                "setAttribute", args -> attributes.put((String) args[0], args[1]),
+                "removeAttribute", args -> attributes.remove((String) args[0])
+        ));
+    }
+
+    public KeycloakSession getSession() {
+        return session;
+    }
+}
@@ -0,0 +1,167 @@
+package de.mixxplorer.keycloak.ssc.harness;
+
+import de.mixxplorer.keycloak.ssc.Constants;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// Creates fakes of Keycloak interfaces via dynamic proxies, so benchmarks do not need a running Keycloak. Methods
+// without an implementation return an empty value of their return type (false, 0, empty collections and streams, null
+// otherwise).
+public class Fakes {
+    private Fakes() {}
+
+    public static <T> T fake(Class<T> type, ModelCallCounter counter, Map<String, Function<Object[], Object>> methods) {
+        return type.cast(Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "Fake" + type.getSimpleName();
+                        default:
+                            break;
+                    }
+                    if (counter != null) {
+                        counter.count(type, method.getName());
+                    }
+                    final Function<Object[], Object> implementation = methods.get(method.getName());
+                    if (implementation != null) {
+                        return implementation.apply(args != null ? args : new Object[0]);
+                    } else if (method.isDefault()) {
+                        return java.lang.reflect.InvocationHandler.invokeDefault(proxy, method, args);
+                    }
+                    return emptyValue(method.getReturnType());
+                }));
+    }
+
+    public static UserModel user(String id) {
+        return fake(UserModel.class, null, Map.<String, Function<Object[], Object>>of("getId", args -> id));
+    }
+
+    /**
+     * Creates a client with the values read by the self service code, derived from its IDs.
+     *
+     * @param counter counts the calls of client methods, may be null
+     * @param realm returned by getRealm, may be null
+     */
+    public static ClientModel client(ModelCallCounter counter, RealmModel realm, String id, String clientId,
+                                     Map<String, String> attributes) {
+        return (ClientModel) Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[] {ClientModel.class},
+                new ClientHandler(counter, realm, id, clientId, attributes));
+    }
+
+    public static ClientModel client(String id, String clientId, Map<String, String> attributes) {
+        return client(null, null, id, clientId, attributes);
+    }
+
+    // attributes of a client managed by the given users, plus the usual OIDC attributes
+    public static Map<String, String> clientAttributes(String... managerUserIds) {
+        final Map<String, String> attributes = new HashMap<>();
+        for (String userId : managerUserIds) {
+            attributes.put(Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + userId,
+                    Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE);
+        }
+        attributes.put("backchannel.logout.session.required", "true");
+        attributes.put("backchannel.logout.revoke.offline.tokens", "false");
+        attributes.put("backchannel.logout.url", "https://example.com/backchannel-logout");
+        attributes.put("post.logout.redirect.uris", "https://example.com/logout##https://example.com/bye##http://localhost:8080/");
+        attributes.put("pkce.code.challenge.method", "S256");
+        return attributes;
+    }
+
+    static Object emptyValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (Stream.class.isAssignableFrom(type)) {
+            return Stream.empty();
+        } else if (type == Set.class) {
+            return Set.of();
+        } else if (type == List.class || type == Collection.class) {
+            return List.of();
+        } else if (type == Map.class) {
+            return Map.of();
+        } else if (type == Optional.class) {
+            return Optional.empty();
+        }
+        return null;
+    }
+
+    // One handler per client, holding only the values which differ between clients. The values are computed once, so
+    // reading them does not allocate.
+    private static class ClientHandler implements InvocationHandler {
+        private final ModelCallCounter counter;
+        private final RealmModel realm;
+        private final String id;
+        private final String clientId;
+        private final Map<String, String> attributes;
+        private final String name;
+        private final String description;
+        private final String rootUrl;
+        private final Set<String> redirectUris;
+
+        ClientHandler(ModelCallCounter counter, RealmModel realm, String id, String clientId, Map<String, String> attributes) {
+            this.counter = counter;
+            this.realm = realm;
+            this.id = id;
+            this.clientId = clientId;
+            this.attributes = attributes;
+            this.name = "Client " + clientId;
+            this.description = "Description of " + clientId;
+            this.rootUrl = "https://" + clientId + ".example.com";
+            this.redirectUris = Set.of(rootUrl + "/*", "http://localhost:8080/*");
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "hashCode":
+                    return id.hashCode();
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return clientId;
+                default:
+                    break;
+            }
+            if (counter != null) {
+                counter.count(ClientModel.class, method.getName());
+            }
+            return switch (method.getName()) {
+                case "getId" -> id;
+                case "getClientId" -> clientId;
+                case "getName" -> name;
+                case "getDescription" -> description;
+                case "getRootUrl" -> rootUrl;
+                case "getBaseUrl" -> "/";
+                case "getRealm" -> realm;
+                case "getAttribute" -> attributes.get((String) args[0]);
+                case "getAttributes" -> attributes;
+                case "getRedirectUris" -> redirectUris;
+                case "getWebOrigins" -> Set.of("+");
+                case "getSecret" -> "secret";
+                case "getProtocol" -> "openid-connect";
+                case "isEnabled", "isStandardFlowEnabled", "isFrontchannelLogout" -> true;
+                default -> emptyValue(method.getReturnType());
+            };
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package de.mixxplorer.keycloak.ssc.harness;
+
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.keycloak.models.ClientModel;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+// Ownership index of an in-memory realm behind a fake entity manager. It answers the read queries of OwnershipIndex
+// (listing and counting the clients of owners), which is all the request paths need. Like the database index, the
+// clients are kept per owner sorted by client ID, so a lookup does not depend on the size of the realm. Calls of the
+// entity manager and its queries are counted as model calls.
+public class InMemoryOwnershipIndex {
+    // owner key to client ID to client UUID
+    private final Map<String, NavigableMap<String, String>> clientsByOwner = new HashMap<>();
+    private final ModelCallCounter counter;
+    private final EntityManager entityManager;
+
+    public InMemoryOwnershipIndex(ModelCallCounter counter) {
+        this.counter = counter;
+        this.entityManager = Fakes.fake(EntityManager.class, counter, Map.<String, Function<Object[], Object>>of(
+                "createQuery", args -> query((String) args[0]),
+                "createNamedQuery", args -> query((String) args[0])));
+    }
+
+    public EntityManager getEntityManager() {
+        return entityManager;
+    }
+
+    public void addClient(ClientModel client) {
+        for (String ownerKey : OwnershipIndex.getOwnerKeys(client)) {
+            clientsByOwner.computeIfAbsent(ownerKey, key -> new TreeMap<>()).put(client.getClientId(), client.getId());
+        }
+    }
+
+    // Only the owner parameters are evaluated, the results are always sorted by client ID
+    private TypedQuery<?> query(String query) {
+        final Map<String, Object> parameters = new HashMap<>();
+        final int[] page = {0, Integer.MAX_VALUE};
+        final TypedQuery<?>[] typedQuery = new TypedQuery<?>[1];
+        typedQuery[0] = Fakes.fake(TypedQuery.class, counter, Map.<String, Function<Object[], Object>>of(
+                "setParameter", args -> {
+                    parameters.put((String) args[0], args[1]);
+                    return typedQuery[0];
+                },
+                "setFirstResult", args -> {
+                    page[0] = (int) args[0];
+                    return typedQuery[0];
+                },
+                "setMaxResults", args -> {
+                    page[1] = (int) args[0];
+                    return typedQuery[0];
+                },
+                "getResultStream", args -> getClientIds(query, parameters).skip(page[0]).limit(page[1]),
+                "getResultList", args -> getClientIds(query, parameters).skip(page[0]).limit(page[1]).toList(),
+                "getSingleResult", args -> getClientIds(query, parameters).count()));
+        return typedQuery[0];
+    }
+
+    private Stream<String> getClientIds(String query, Map<String, Object> parameters) {
+        final Collection<?> ownerKeys;
+        if (parameters.get("owners") instanceof Collection<?> owners) {
+            ownerKeys = owners;
+        } else if (parameters.get("userId") != null) {
+            ownerKeys = List.of(parameters.get("userId"));
+        } else {
+            throw new IllegalStateException("Query not supported by the in-memory ownership index: " + query);
+        }
+        // clients owned by more than one of the owners are returned once, as by the group by of the query
+        final NavigableMap<String, String> clients = new TreeMap<>();
+        ownerKeys.forEach(ownerKey -> clients.putAll(clientsByOwner.getOrDefault((String) ownerKey, new TreeMap<>())));
+        return clients.values().stream();
+    }
+}
@@ -0,0 +1,82 @@
+package de.mixxplorer.keycloak.ssc.harness;
+
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+
+// Realm with clients held in memory, including their ownership index. Calls of realm and client methods are counted.
+public class InMemoryRealm {
+    private final String id;
+    private final ModelCallCounter counter;
+    private final List<ClientModel> clients = new ArrayList<>();
+    private final Map<String, ClientModel> clientsById = new HashMap<>();
+    private final Map<String, ClientModel> clientsByClientId = new HashMap<>();
+    private final RealmModel realm;
+    private final InMemoryOwnershipIndex ownershipIndex;
+
+    public InMemoryRealm(String id, ModelCallCounter counter) {
+        this.id = id;
+        this.counter = counter;
+        this.ownershipIndex = new InMemoryOwnershipIndex(counter);
+        this.realm = Fakes.fake(RealmModel.class, counter, Map.<String, Function<Object[], Object>>of(
+                "getId", args -> id,
+                "getName", args -> id,
+                "getClientById", args -> clientsById.get((String) args[0]),
+                "getClientByClientId", args -> clientsByClientId.get((String) args[0]),
+                "getClientsStream", args -> clients.stream(),
+                "getClientsCount", args -> (long) clients.size(),
+                "searchClientByAttributes", args -> searchClientByAttributes((Map<?, ?>) args[0])
+        ));
+    }
+
+    public RealmModel getRealm() {
+        return realm;
+    }
+
+    public InMemoryOwnershipIndex getOwnershipIndex() {
+        return ownershipIndex;
+    }
+
+    // Seeds clients, of which every user owns clientsPerUser clients. Clients get UUIDs "client-<n>" and client IDs
+    // "ssc-client-<n>", users IDs "user-<n>".
+    public void seed(int clientCount, int clientsPerUser) {
+        for (int i = 0; i < clientCount; i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "user-" + (i / clientsPerUser),
+                    CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE);
+            attributes.put("post.logout.redirect.uris", "https://example.com/logout##https://example.com/bye");
+            attributes.put("backchannel.logout.session.required", "true");
+            addClient("client-" + i, "ssc-client-" + i, attributes);
+        }
+    }
+
+    public ClientModel addClient(String clientUuid, String clientId, Map<String, String> attributes) {
+        final ClientModel client = Fakes.client(counter, realm, clientUuid, clientId, attributes);
+        clients.add(client);
+        clientsById.put(clientUuid, client);
+        clientsByClientId.put(clientId, client);
+        ownershipIndex.addClient(client);
+        return client;
+    }
+
+    // Like the JPA implementation (see https://github.com/keycloak/keycloak/issues/25976), the search over-matches:
+    // only the attribute values are compared, so searching for the manager attribute of one user returns the clients
+    // of all users. Callers have to filter the results.
+    private Stream<ClientModel> searchClientByAttributes(Map<?, ?> attributes) {
+        return clients.stream().filter(client -> attributes.values().stream()
+                .allMatch(value -> client.getAttributes().containsValue(value)));
+    }
+
+    public String getId() {
+        return id;
+    }
+}
@@ -0,0 +1,36 @@
+package de.mixxplorer.keycloak.ssc.harness;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts the calls of model methods (e.g. "RealmModel.getClientById"), so benchmarks can check how the number of
+// model calls grows with the size of a realm.
+public class ModelCallCounter {
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+
+    public void count(Class<?> type, String method) {
+        calls.computeIfAbsent(type.getSimpleName() + "." + method, key -> new LongAdder()).increment();
+    }
+
+    public long total() {
+        return calls.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    public long get(Class<?> type, String method) {
+        final LongAdder adder = calls.get(type.getSimpleName() + "." + method);
+        return adder != null ? adder.sum() : 0;
+    }
+
+    public void reset() {
+        calls.clear();
+    }
+
+    @Override
+    public String toString() {
+        final Map<String, Long> sorted = new TreeMap<>();
+        calls.forEach((key, adder) -> sorted.put(key, adder.sum()));
+        return sorted.toString();
+    }
+}
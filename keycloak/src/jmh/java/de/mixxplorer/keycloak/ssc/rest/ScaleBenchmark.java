@@ -0,0 +1,116 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import de.mixxplorer.keycloak.ssc.harness.FakeSession;
+import de.mixxplorer.keycloak.ssc.harness.Fakes;
+import de.mixxplorer.keycloak.ssc.harness.InMemoryRealm;
+import de.mixxplorer.keycloak.ssc.harness.ModelCallCounter;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.Config;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Drives the resources against in-memory realms of different sizes and checks how many model calls a request needs.
+// Exceeding a budget fails the benchmark, and therefore "gradle jmh" and "gradle check" (see the jmhBudgets task), so
+// regressions in how the cost grows with the realm size are noticed. Both lookups of owned clients are measured: the
+// attribute search, which is used until the ownership index is ready, and the ownership index, kept in memory by the
+// fakes. Only the attribute search may look at every client of the realm.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScaleBenchmark {
+    private static final int CLIENTS_PER_USER = 10;
+
+    @Param({"1000", "10000", "100000"})
+    public int realmSize;
+
+    @Param({"attributes", "index"})
+    public String lookup;
+
+    private ModelCallCounter counter;
+    private SelfServiceResources resources;
+    private long operations;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        counter = new ModelCallCounter();
+        final InMemoryRealm realm = new InMemoryRealm("scale", counter);
+        realm.seed(realmSize, CLIENTS_PER_USER);
+
+        final UserModel user = Fakes.fake(UserModel.class, counter, Map.<String, Function<Object[], Object>>of(
+                "getId", args -> "user-0"));
+        final KeycloakSession session = new FakeSession(realm, user).getSession();
+        final ClientModel sscClient = realm.addClient("ssc", "self-service-clients", Map.of());
+        final AccessToken token = new AccessToken().subject("user-0");
+        final AuthenticationManager.AuthResult auth = new AuthenticationManager.AuthResult(user, null, token, sscClient);
+        final SelfServiceProviderFactory factory = new SelfServiceProviderFactory();
+        factory.init(new Config.SystemPropertiesScope("ssc."));
+        factory.setOwnershipIndexReady(lookup.equals("index"));
+        resources = new SelfServiceResources(session, auth, factory);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetCounter() {
+        counter.reset();
+        operations = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkBudget(BenchmarkParams params) {
+        final String benchmark = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+        final boolean indexed = lookup.equals("index");
+        final long budget = switch (benchmark) {
+            // the attribute search has to look at every client of the realm, but only once, while the index only
+            // returns the owned clients, so the rest of a list is building their representations
+            case "listClients" -> indexed ? 400 : 3L * realmSize + 200;
+            case "countOwnedClients" -> indexed ? 20 : 3L * realmSize + 200;
+            case "getClient" -> 60;
+            default -> throw new IllegalStateException("No budget for " + benchmark);
+        };
+        final long callsPerOperation = operations > 0 ? counter.total() / operations : 0;
+        if (callsPerOperation > budget) {
+            throw new IllegalStateException(String.format("%s needs %d model calls per operation with %d clients, "
+                    + "budget is %d: %s", benchmark, callsPerOperation, realmSize, budget, counter));
+        }
+    }
+
+    @Benchmark
+    public void listClients() throws IOException {
+        operations++;
+        final Response response = resources.getClients(0, 100, "clientId", null, null, "substring");
+        ((StreamingOutput) response.getEntity()).write(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Response getClient() {
+        operations++;
+        return resources.get("client-5").get(null);
+    }
+
+    // this is what the quota check of create() costs, as long as the quota counter of a user is not initialized
+    @Benchmark
+    public long countOwnedClients() {
+        operations++;
+        return resources.countOwnedClients();
+    }
+}
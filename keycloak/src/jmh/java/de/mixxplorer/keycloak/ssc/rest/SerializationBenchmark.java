@@ -0,0 +1,64 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import de.mixxplorer.keycloak.ssc.harness.Fakes;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
+import jakarta.ws.rs.core.EntityTag;
+import org.keycloak.models.ClientModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+// Serialization of client lists, as done by GET /clients
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int size;
+
+    private Set<String> fields;
+    private List<ClientModel> models;
+    private List<EntityTag> tags;
+    private List<SelfServiceClientRepresentation> clients;
+    private ClientRepresentationCache cache;
+
+    @Setup
+    public void setup() {
+        fields = new HashSet<>(SelfServiceClientRepresentation.FIELDS);
+        fields.remove("authorizationServicesEnabled");
+        models = IntStream.range(0, size)
+                .mapToObj(i -> Fakes.client("uuid-" + i, "ssc-client-" + i, Fakes.clientAttributes("user")))
+                .toList();
+        tags = models.stream().map(client -> ClientETag.of(client, null, fields)).toList();
+        clients = models.stream()
+                .map(client -> SelfServiceClientRepresentation.of(client, null, fields))
+                .toList();
+        cache = new ClientRepresentationCache(10000);
+    }
+
+    @Benchmark
+    public void serializeList() throws IOException {
+        StreamingJson.array(clients.stream()).write(OutputStream.nullOutputStream());
+    }
+
+    // repeated reads of unchanged clients, as answered by ClientRepresentationCache
+    @Benchmark
+    public void serializeCachedList() throws IOException {
+        final String fieldsKey = ClientRepresentationCache.getFieldsKey(fields);
+        StreamingJson.array(IntStream.range(0, size).mapToObj(i -> cache.get(models.get(i), tags.get(i), null, fields, fieldsKey)))
+                .write(OutputStream.nullOutputStream());
+    }
+}
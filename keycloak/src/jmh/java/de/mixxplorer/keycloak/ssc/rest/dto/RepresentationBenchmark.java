@@ -0,0 +1,86 @@
+package de.mixxplorer.keycloak.ssc.rest.dto;
+
+import de.mixxplorer.keycloak.ssc.harness.Fakes;
+import de.mixxplorer.keycloak.ssc.realm.UrlAllowList;
+import org.keycloak.models.ClientModel;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RepresentationBenchmark {
+    private ClientModel client;
+    // all fields, except the authorization services flag, which requires a session
+    private Set<String> fields;
+    private Set<String> listFields;
+    private SelfServiceClientWritableRepresentation writable;
+    private UrlAllowList allowedUrls;
+
+    @Setup
+    public void setup() {
+        client = Fakes.client("0b4b4c0e", "ssc-benchmark", Fakes.clientAttributes("user"));
+        fields = new HashSet<>(SelfServiceClientRepresentation.FIELDS);
+        fields.remove("authorizationServicesEnabled");
+        listFields = Set.of("clientId", "name", "enabled");
+
+        writable = new SelfServiceClientWritableRepresentation();
+        writable.clientId = "ssc-benchmark";
+        writable.name = "Benchmark";
+        writable.description = "Client used for benchmarks";
+        writable.rootUrl = "https://example.com";
+        writable.redirectUris = List.of("https://example.com/*", "http://localhost:8080/*");
+        writable.webOrigins = List.of("+");
+        writable.publicClient = false;
+        writable.backchannelLogoutSessionRequired = true;
+        writable.backchannelLogoutRevokeOfflineTokens = false;
+        writable.backchannelLogoutUrl = "https://example.com/backchannel-logout";
+        writable.postLogoutRedirectUris = List.of("https://example.com/logout", "https://example.com/bye");
+
+        // a realm with a few hundred rules, of which the client only needs two
+        final StringBuilder rules = new StringBuilder("https://example.com http://localhost");
+        for (int i = 0; i < 500; i++) {
+            rules.append(" https://*.team").append(i).append(".example.org");
+        }
+        allowedUrls = UrlAllowList.compile(rules.toString());
+    }
+
+    @Benchmark
+    public SelfServiceClientRepresentation fromModelAllFields() {
+        return new SelfServiceClientRepresentation(client, null, fields);
+    }
+
+    // fields requested by the client list of the frontend
+    @Benchmark
+    public SelfServiceClientRepresentation fromModelListFields() {
+        return new SelfServiceClientRepresentation(client, null, listFields);
+    }
+
+    @Benchmark
+    public List<String> splitPostLogoutRedirectUris() {
+        return SelfServiceClientRepresentation.splitMultivalued(client.getAttribute("post.logout.redirect.uris"));
+    }
+
+    @Benchmark
+    public ClientRepresentation toClientRepresentation() {
+        writable.validate(UrlAllowList.ALLOW_ALL);
+        return writable.toClientRepresentation();
+    }
+
+    @Benchmark
+    public ClientRepresentation toClientRepresentationWithAllowList() {
+        writable.validate(allowedUrls);
+        return writable.toClientRepresentation();
+    }
+}
@@ -3,9 +3,25 @@ package de.mixxplorer.keycloak.ssc;
 public class Constants {
     public static final String SSC_CLIENT_ID = "self-service-clients";
     public static final String SSC_MANAGER_CLIENT_ROLE = "manage-self-service-clients";
+    // separate role for realm-wide views on all self service clients, e.g. for operators
+    public static final String SSC_ADMIN_CLIENT_ROLE = "admin-self-service-clients";
+    // users with this role get the Server-Timing header with the phases of their requests
+    public static final String SSC_DEBUG_CLIENT_ROLE = "debug-self-service-clients";
 
     public static final String CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX = "self-service-clients-user-";
     public static final String CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE = "manager";
+    // members of the group (including members of its subgroups) can manage the client as well, same value as above
+    public static final String CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX = "self-service-clients-group-";
 
+    // default, can be overwritten via the SPI option max-clients-per-user and the attributes below
     public static final int MAX_CLIENTS_PER_USER = 25;
+    public static final String REALM_MAX_CLIENTS_PER_USER_ATTRIBUTE = "self-service-clients-max-clients-per-user";
+    // rules for the URLs of self service clients, see UrlAllowList. If not set, all URLs are allowed.
+    public static final String REALM_URL_ALLOW_LIST_ATTRIBUTE = "self-service-clients-allowed-urls";
+    // time in seconds the secret rotation first ran for the realm, set by the rotation itself
+    public static final String REALM_SECRET_ROTATION_SINCE_ATTRIBUTE = "self-service-clients-secret-rotation-since";
+    // set on roles, as users may edit their own attributes. Users get the highest limit of their roles.
+    public static final String ROLE_MAX_CLIENTS_ATTRIBUTE = "self-service-clients-max-clients";
+    // clients owned by a group are only limited if the group has this attribute
+    public static final String GROUP_MAX_CLIENTS_ATTRIBUTE = "self-service-clients-max-clients";
 }
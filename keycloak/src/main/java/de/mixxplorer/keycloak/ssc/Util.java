@@ -3,27 +3,73 @@ package de.mixxplorer.keycloak.ssc;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.UserModel;
 
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX;
 import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
 import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
 
 public class Util {
+    // name of the client attribute marking the user as manager of a client
+    public static String getUserManageClientAttributeName(UserModel user) {
+        return CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + user.getId();
+    }
+
     public static Map<String, String> getUserManageClientAttributeMap(UserModel user) {
-        final HashMap<String, String> map = new HashMap<>();
-        map.put(CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + user.getId(), CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE);
-        return map;
+        return Map.of(getUserManageClientAttributeName(user), CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE);
+    }
+
+    // name of the client attribute marking the members of a group as managers of a client
+    public static String getGroupManageClientAttributeName(String groupId) {
+        return CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX + groupId;
     }
 
     // checks whether a user has access to manage a (self service) client
     public static boolean hasUserAccessToClient(ClientModel model, UserModel user) {
-        for (Map.Entry<String, String> attrSet: getUserManageClientAttributeMap(user).entrySet()) {
-            String clientAttribute = model.getAttribute(attrSet.getKey());
-            if (clientAttribute == null || !clientAttribute.equals(attrSet.getValue())) {
-                return false;
+        return hasUserAccessToClient(model, getUserManageClientAttributeName(user));
+    }
+
+    // Same as above, but does not allocate anything. Use this when checking many clients for the same user.
+    public static boolean hasUserAccessToClient(ClientModel model, String userManageClientAttributeName) {
+        return CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE.equals(model.getAttribute(userManageClientAttributeName));
+    }
+
+    // Checks whether one of the groups owns the client. Goes over the client attributes once, instead of looking up
+    // an attribute per group.
+    public static boolean hasGroupAccessToClient(ClientModel model, Set<String> groupIds) {
+        for (Map.Entry<String, String> attr : model.getAttributes().entrySet()) {
+            if (attr.getKey().startsWith(CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX)
+                    && CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE.equals(attr.getValue())
+                    && groupIds.contains(attr.getKey().substring(CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX.length()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns the IDs of all users, which are allowed to manage a (self service) client
+    public static Set<String> getClientOwnerUserIds(ClientModel model) {
+        return getOwnerIds(model, CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX);
+    }
+
+    // returns the IDs of all groups, whose members are allowed to manage a (self service) client
+    public static Set<String> getClientOwnerGroupIds(ClientModel model) {
+        return getOwnerIds(model, CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX);
+    }
+
+    // called for every client of lists (e.g. for entity tags), so clients without owners of the kind do not allocate
+    private static Set<String> getOwnerIds(ClientModel model, String attributePrefix) {
+        Set<String> ownerIds = null;
+        for (Map.Entry<String, String> attr : model.getAttributes().entrySet()) {
+            if (attr.getKey().startsWith(attributePrefix) && CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE.equals(attr.getValue())) {
+                if (ownerIds == null) {
+                    ownerIds = new HashSet<>();
+                }
+                ownerIds.add(attr.getKey().substring(attributePrefix.length()));
             }
         }
-        return true;
+        return ownerIds != null ? ownerIds : Set.of();
     }
 }
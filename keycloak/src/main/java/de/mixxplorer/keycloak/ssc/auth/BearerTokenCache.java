@@ -0,0 +1,91 @@
+package de.mixxplorer.keycloak.ssc.auth;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.representations.AccessToken;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Caches verified bearer tokens for a short time, so bursts of requests with the same token do not repeat the
+// signature verification as well as the user and session lookups. Tokens are only stored as SHA-256 hash.
+// Entries are evicted on logouts and user changes seen on this node (see SelfServiceEventListenerProvider), on other
+// cluster nodes they are used until the configured TTL passed. Therefore, the cache is disabled by default.
+public class BearerTokenCache {
+    private final Map<String, VerifiedBearerToken> tokens = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final int maxEntries;
+
+    public BearerTokenCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0 && maxEntries > 0;
+    }
+
+    // returns the verified token, null if it is not cached (anymore)
+    public VerifiedBearerToken get(String realmId, String tokenString) {
+        if (!isEnabled()) {
+            return null;
+        }
+        final String key = hash(tokenString);
+        final VerifiedBearerToken verified = tokens.get(key);
+        if (verified == null) {
+            return null;
+        } else if (verified.expiresAt() <= Time.currentTimeMillis() || !verified.realmId().equals(realmId)) {
+            tokens.remove(key, verified);
+            return null;
+        }
+        return verified;
+    }
+
+    // The entry never outlives the token itself
+    public long getExpiresAt(AccessToken token) {
+        final long expiresAt = Time.currentTimeMillis() + ttlMillis;
+        return token.getExp() != null ? Math.min(expiresAt, token.getExp() * 1000L) : expiresAt;
+    }
+
+    public void put(String tokenString, VerifiedBearerToken verified) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (tokens.size() >= maxEntries) {
+            final long now = Time.currentTimeMillis();
+            tokens.values().removeIf(entry -> entry.expiresAt() <= now);
+            if (tokens.size() >= maxEntries) {
+                return;
+            }
+        }
+        tokens.put(hash(tokenString), verified);
+    }
+
+    public void evictSession(String sessionId) {
+        if (sessionId != null) {
+            tokens.values().removeIf(entry -> sessionId.equals(entry.sessionId()));
+        }
+    }
+
+    public void evictUser(String userId) {
+        if (userId != null) {
+            tokens.values().removeIf(entry -> userId.equals(entry.userId()));
+        }
+    }
+
+    public void evictRealm(String realmId) {
+        tokens.values().removeIf(entry -> realmId.equals(entry.realmId()));
+    }
+
+    private static String hash(String tokenString) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(tokenString.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+}
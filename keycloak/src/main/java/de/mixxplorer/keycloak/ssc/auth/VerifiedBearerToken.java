@@ -0,0 +1,32 @@
+package de.mixxplorer.keycloak.ssc.auth;
+
+import org.keycloak.representations.AccessToken;
+import org.keycloak.services.managers.AuthenticationManager;
+
+import java.util.Set;
+
+/**
+ * Data of a successfully authenticated bearer token, as needed by the self service resources.
+ *
+ * @param clientUuid UUID of the client the token has been issued for
+ * @param sscRoles client roles of the SSC_CLIENT_ID client contained in the token
+ * @param token parsed token, used for the allowed origins and admin permission evaluation
+ * @param expiresAt time in milliseconds until this may be reused
+ */
+public record VerifiedBearerToken(String realmId, String userId, String sessionId, String clientUuid, Set<String> sscRoles,
+                                  AccessToken token, long expiresAt) {
+
+    public static VerifiedBearerToken of(String realmId, AuthenticationManager.AuthResult authResult, String sscClientId,
+                                         long expiresAt) {
+        final AccessToken token = authResult.getToken();
+        final AccessToken.Access access = token.getRealmAccess() != null ? token.getResourceAccess(sscClientId) : null;
+        final Set<String> roles = access != null && access.getRoles() != null ? Set.copyOf(access.getRoles()) : Set.of();
+
+        return new VerifiedBearerToken(realmId, authResult.getUser().getId(), token.getSessionId(),
+                authResult.getClient() != null ? authResult.getClient().getId() : null, roles, token, expiresAt);
+    }
+
+    public boolean hasRole(String role) {
+        return sscRoles.contains(role);
+    }
+}
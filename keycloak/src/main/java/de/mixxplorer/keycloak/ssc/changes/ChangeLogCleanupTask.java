@@ -0,0 +1,31 @@
+package de.mixxplorer.keycloak.ssc.changes;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.timer.ScheduledTask;
+
+// Removes tombstones from the change log once they are older than the retention time. Runs via
+// ClusterAwareScheduledTaskRunner, so only one cluster node does this per interval.
+public class ChangeLogCleanupTask implements ScheduledTask {
+    public static final String TASK_NAME = "self-service-clients-change-log-cleanup";
+
+    private static final Logger logger = Logger.getLogger(ChangeLogCleanupTask.class);
+
+    private final long retentionMillis;
+
+    public ChangeLogCleanupTask(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        final int removed = new ClientChangeLog(session).removeTombstones(Time.currentTimeMillis() - retentionMillis);
+        logger.debugf("Removed %d expired tombstones from the self service client change log", removed);
+    }
+}
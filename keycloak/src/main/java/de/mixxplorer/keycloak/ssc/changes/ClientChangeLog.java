@@ -0,0 +1,138 @@
+package de.mixxplorer.keycloak.ssc.changes;
+
+import de.mixxplorer.keycloak.ssc.jpa.ClientChangeEntity;
+import de.mixxplorer.keycloak.ssc.ownership.ClientOwners;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import jakarta.persistence.EntityManager;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+// Log of the last change of every self service client per owner, so owners can fetch the clients changed since their
+// last poll with a single indexed lookup, regardless of the number of clients in the realm.
+// A change overwrites the previous row of the same client and owner. Deleted clients, and clients an owner lost access
+// to, stay as tombstones until the retention time passed. Sync tokens older than that can therefore miss deletions and
+// require a full resync.
+// Like the ownership index, the log is written for changes via the self service API as well as for changes done
+// elsewhere (e.g. via the admin console), as far as they fire provider events.
+public class ClientChangeLog {
+    // Changes are logged with the time of their transaction, but only visible once committed. Tokens therefore lie a bit
+    // in the past, so changes committed late are still returned on the next poll (possibly twice).
+    private static final long TOKEN_LAG_MILLIS = 10000L;
+
+    private final EntityManager em;
+
+    public ClientChangeLog(KeycloakSession session) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    // Marks the client as changed for its current owners, and as deleted for owners who lost access
+    public void recordChange(ClientModel client) {
+        final Set<String> owners = OwnershipIndex.getOwnerKeys(client);
+        final Set<String> logged = new HashSet<>();
+        final long now = Time.currentTimeMillis();
+
+        findByClient(client.getId()).forEach(entity -> {
+            if (owners.contains(entity.getOwnerId())) {
+                logged.add(entity.getOwnerId());
+                update(entity, false, now);
+            } else if (!entity.isDeleted()) {
+                update(entity, true, now);
+            }
+        });
+
+        for (String ownerKey : owners) {
+            if (!logged.contains(ownerKey)) {
+                persist(client, ownerKey, false, now);
+            }
+        }
+    }
+
+    // Marks the client as deleted for all logged and current owners. Clients not changed since the log exists have no
+    // entries yet, so their current owners get a tombstone.
+    public void recordRemoval(ClientModel client) {
+        final Set<String> owners = OwnershipIndex.getOwnerKeys(client);
+        final long now = Time.currentTimeMillis();
+        findByClient(client.getId()).forEach(entity -> {
+            owners.remove(entity.getOwnerId());
+            update(entity, true, now);
+        });
+        for (String ownerKey : owners) {
+            persist(client, ownerKey, true, now);
+        }
+    }
+
+    /**
+     * Returns the changes of the clients of a user and its groups.
+     *
+     * @param since time in milliseconds, exclusive
+     * @return changes ordered by their time, a client might be contained once per owner
+     */
+    public List<ClientChangeEntity> getChanges(RealmModel realm, ClientOwners owners, long since) {
+        return em.createNamedQuery("sscChangesByOwners", ClientChangeEntity.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("owners", owners.getIndexKeys())
+                .setParameter("since", since)
+                .getResultList();
+    }
+
+    // Removes the tombstones older than the given time in milliseconds, returns the number of removed rows
+    public int removeTombstones(long before) {
+        return em.createNamedQuery("sscDeleteTombstones").setParameter("before", before).executeUpdate();
+    }
+
+    public void removeRealm(String realmId) {
+        em.createNamedQuery("sscDeleteChangesByRealm").setParameter("realmId", realmId).executeUpdate();
+    }
+
+    // opaque for callers, so the format can change
+    public static String createToken(long now) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Long.toString(now - TOKEN_LAG_MILLIS)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    // returns the time in milliseconds, null if the token is invalid
+    public static Long parseToken(String token) {
+        try {
+            return Long.parseLong(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException exc) {
+            return null;
+        }
+    }
+
+    private List<ClientChangeEntity> findByClient(String clientUuid) {
+        return em.createNamedQuery("sscChangesByClient", ClientChangeEntity.class)
+                .setParameter("clientId", clientUuid)
+                .getResultList();
+    }
+
+    private void persist(ClientModel client, String ownerKey, boolean deleted, long now) {
+        final ClientChangeEntity entity = new ClientChangeEntity();
+        entity.setId(getId(client.getId(), ownerKey));
+        entity.setRealmId(client.getRealm().getId());
+        entity.setClientId(client.getId());
+        entity.setOwnerId(ownerKey);
+        entity.setChangedTimestamp(now);
+        entity.setDeleted(deleted);
+        em.persist(entity);
+    }
+
+    // a client changed more than once within the same millisecond still moves forward
+    private static void update(ClientChangeEntity entity, boolean deleted, long now) {
+        entity.setDeleted(deleted);
+        entity.setChangedTimestamp(Math.max(now, entity.getChangedTimestamp() + 1));
+    }
+
+    private static String getId(String clientUuid, String ownerKey) {
+        return UUID.nameUUIDFromBytes((clientUuid + "/" + ownerKey).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}
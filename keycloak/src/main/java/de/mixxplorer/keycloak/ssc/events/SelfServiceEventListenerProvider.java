@@ -0,0 +1,62 @@
+package de.mixxplorer.keycloak.ssc.events;
+
+import de.mixxplorer.keycloak.ssc.auth.BearerTokenCache;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsageCounters;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+
+public class SelfServiceEventListenerProvider implements EventListenerProvider {
+    private final BearerTokenCache bearerTokenCache;
+    // null if the usage statistics are disabled
+    private final ClientUsageCounters clientUsageCounters;
+
+    public SelfServiceEventListenerProvider(BearerTokenCache bearerTokenCache, ClientUsageCounters clientUsageCounters) {
+        this.bearerTokenCache = bearerTokenCache;
+        this.clientUsageCounters = clientUsageCounters;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        final EventType type = event.getType();
+        if (type == EventType.LOGOUT) {
+            bearerTokenCache.evictSession(event.getSessionId());
+        } else if (type == EventType.LOGIN) {
+            recordUsage(event, 1);
+        } else if (type == EventType.CODE_TO_TOKEN || type == EventType.CLIENT_LOGIN || type == EventType.REFRESH_TOKEN) {
+            // token requests only count as use of the client, the login happened before
+            recordUsage(event, 0);
+        }
+    }
+
+    // Sessions logged out or users changed (e.g. disabled) by an admin must not be served from the token cache anymore
+    @Override
+    public void onEvent(AdminEvent adminEvent, boolean includeRepresentation) {
+        final String resourcePath = adminEvent.getResourcePath();
+        if (resourcePath == null) {
+            return;
+        }
+
+        if (adminEvent.getResourceType() == ResourceType.USER_SESSION && adminEvent.getOperationType() == OperationType.DELETE) {
+            bearerTokenCache.evictSession(resourcePath.substring(resourcePath.lastIndexOf('/') + 1));
+        } else if (adminEvent.getResourceType() == ResourceType.USER && resourcePath.startsWith("users/")) {
+            final String[] pathSegments = resourcePath.split("/");
+            bearerTokenCache.evictUser(pathSegments[1]);
+        } else if (adminEvent.getResourceType() == ResourceType.REALM && adminEvent.getOperationType() == OperationType.ACTION
+                && resourcePath.equals("logout-all")) {
+            bearerTokenCache.evictRealm(adminEvent.getRealmId());
+        }
+    }
+
+    private void recordUsage(Event event, long logins) {
+        if (clientUsageCounters != null && event.getRealmId() != null && event.getClientId() != null) {
+            clientUsageCounters.record(event.getRealmId(), event.getClientId(), logins, event.getTime());
+        }
+    }
+
+    @Override
+    public void close() {}
+}
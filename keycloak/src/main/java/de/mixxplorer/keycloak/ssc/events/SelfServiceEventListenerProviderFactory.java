@@ -0,0 +1,44 @@
+package de.mixxplorer.keycloak.ssc.events;
+
+import de.mixxplorer.keycloak.ssc.rest.SelfServiceProviderFactory;
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class SelfServiceEventListenerProviderFactory implements EventListenerProviderFactory {
+    public static final String ID = "self-service-clients";
+
+    private SelfServiceProviderFactory selfServiceProviderFactory;
+
+    @Override
+    public EventListenerProvider create(KeycloakSession keycloakSession) {
+        return new SelfServiceEventListenerProvider(selfServiceProviderFactory.getBearerTokenCache(),
+                selfServiceProviderFactory.getClientUsageCounters());
+    }
+
+    @Override
+    public void init(Config.Scope scope) {}
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        selfServiceProviderFactory = (SelfServiceProviderFactory) keycloakSessionFactory.getProviderFactory(
+                RealmResourceProvider.class, SelfServiceProviderFactory.ID);
+    }
+
+    @Override
+    public void close() {}
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    // Receive the events of all realms without having to enable the listener in each realm
+    @Override
+    public boolean isGlobal() {
+        return true;
+    }
+}
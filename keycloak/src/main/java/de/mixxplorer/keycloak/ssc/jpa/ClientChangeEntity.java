@@ -0,0 +1,93 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+// Last change of a self service client as seen by one of its (current or former) owners, see ClientChangeLog.
+// Rows of deleted clients and of owners who lost access are tombstones, which are removed after the retention time.
+@Entity
+@Table(name = "SSC_CLIENT_CHANGE")
+@NamedQueries({
+    @NamedQuery(name = "sscChangesByClient", query = "select c from ClientChangeEntity c where c.clientId = :clientId"),
+    @NamedQuery(name = "sscChangesByOwners", query = "select c from ClientChangeEntity c "
+            + "where c.realmId = :realmId and c.ownerId in :owners and c.changedTimestamp > :since "
+            + "order by c.changedTimestamp"),
+    @NamedQuery(name = "sscDeleteTombstones", query = "delete from ClientChangeEntity c "
+            + "where c.deleted = true and c.changedTimestamp < :before"),
+    @NamedQuery(name = "sscDeleteChangesByRealm", query = "delete from ClientChangeEntity c where c.realmId = :realmId"),
+})
+public class ClientChangeEntity {
+    // derived from client and owner, so a change overwrites the previous one
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    protected String realmId;
+
+    // UUID of the client, not its (OIDC) client ID
+    @Column(name = "CLIENT_ID", length = 36, nullable = false)
+    protected String clientId;
+
+    // user ID, or "group:<group-UUID>" for groups (see OwnershipIndex)
+    @Column(name = "OWNER_ID", nullable = false)
+    protected String ownerId;
+
+    @Column(name = "CHANGED_TIMESTAMP", nullable = false)
+    protected long changedTimestamp;
+
+    @Column(name = "DELETED", nullable = false)
+    protected boolean deleted;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public long getChangedTimestamp() {
+        return changedTimestamp;
+    }
+
+    public void setChangedTimestamp(long changedTimestamp) {
+        this.changedTimestamp = changedTimestamp;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+}
@@ -0,0 +1,82 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+// Number of logins to a self service client on a single day (UTC), kept for the login statistics of the last days
+// (see ClientUsageStore)
+@Entity
+@Table(name = "SSC_CLIENT_LOGINS")
+@NamedQueries({
+    @NamedQuery(name = "sscAddLogins", query = "update ClientLoginsEntity l set l.logins = l.logins + :logins "
+            + "where l.id = :id"),
+    @NamedQuery(name = "sscLoginsByClients", query = "select l.clientId, sum(l.logins) from ClientLoginsEntity l "
+            + "where l.clientId in :clientIds and l.day >= :since group by l.clientId"),
+    @NamedQuery(name = "sscDeleteLoginsByClient", query = "delete from ClientLoginsEntity l where l.clientId = :clientId"),
+    @NamedQuery(name = "sscDeleteLoginsByRealm", query = "delete from ClientLoginsEntity l where l.realmId = :realmId"),
+    @NamedQuery(name = "sscDeleteExpiredLogins", query = "delete from ClientLoginsEntity l where l.day < :before"),
+})
+public class ClientLoginsEntity {
+    // derived from client UUID and day, see ClientUsageStore
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    protected String realmId;
+
+    // UUID of the client
+    @Column(name = "CLIENT_ID", length = 36, nullable = false)
+    protected String clientId;
+
+    // days since the epoch
+    @Column(name = "LOGIN_DAY", nullable = false)
+    protected long day;
+
+    @Column(name = "LOGINS", nullable = false)
+    protected long logins;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public long getDay() {
+        return day;
+    }
+
+    public void setDay(long day) {
+        this.day = day;
+    }
+
+    public long getLogins() {
+        return logins;
+    }
+
+    public void setLogins(long logins) {
+        this.logins = logins;
+    }
+}
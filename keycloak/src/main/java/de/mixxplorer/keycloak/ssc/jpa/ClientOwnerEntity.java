@@ -0,0 +1,84 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+// Maps an owning user or group to a self service client. This is only an index, the client attributes
+// (self-service-clients-user-<user-UUID> and self-service-clients-group-<group-UUID>) stay the source of truth.
+@Entity
+@Table(name = "SSC_CLIENT_OWNER")
+@NamedQueries({
+    @NamedQuery(name = "sscCountClientsByOwner", query = "select count(o) from ClientOwnerEntity o "
+            + "where o.realmId = :realmId and o.userId = :userId"),
+    @NamedQuery(name = "sscCountClientsByOwners", query = "select count(distinct o.clientId) from ClientOwnerEntity o "
+            + "where o.realmId = :realmId and o.userId in :owners"),
+    @NamedQuery(name = "sscOwnersByClient", query = "select o from ClientOwnerEntity o where o.clientId = :clientId"),
+    @NamedQuery(name = "sscOwnersByRealm", query = "select o from ClientOwnerEntity o where o.realmId = :realmId"),
+    @NamedQuery(name = "sscDeleteOwnersByRealm", query = "delete from ClientOwnerEntity o where o.realmId = :realmId"),
+    @NamedQuery(name = "sscDeleteOwnersByOwner", query = "delete from ClientOwnerEntity o "
+            + "where o.realmId = :realmId and o.userId = :userId"),
+})
+public class ClientOwnerEntity {
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    protected String realmId;
+
+    // UUID of the client, not its (OIDC) client ID
+    @Column(name = "CLIENT_ID", length = 36, nullable = false)
+    protected String clientId;
+
+    // user ID, or "group:<group-UUID>" for groups (see OwnershipIndex)
+    @Column(name = "USER_ID", nullable = false)
+    protected String userId;
+
+    // time the client got indexed, used for sorting by creation time
+    @Column(name = "CREATED_TIMESTAMP")
+    protected Long createdTimestamp;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public Long getCreatedTimestamp() {
+        return createdTimestamp;
+    }
+
+    public void setCreatedTimestamp(Long createdTimestamp) {
+        this.createdTimestamp = createdTimestamp;
+    }
+}
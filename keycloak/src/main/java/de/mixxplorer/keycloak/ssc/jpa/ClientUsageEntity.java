@@ -0,0 +1,54 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+// Time a self service client was used last, i.e. a user logged in or it got tokens (see ClientUsageStore)
+@Entity
+@Table(name = "SSC_CLIENT_USAGE")
+@NamedQueries({
+    @NamedQuery(name = "sscUpdateLastUsed", query = "update ClientUsageEntity u set u.lastUsed = :lastUsed "
+            + "where u.id = :id and u.lastUsed < :lastUsed"),
+    @NamedQuery(name = "sscUsageByIds", query = "select u from ClientUsageEntity u where u.id in :ids"),
+    @NamedQuery(name = "sscDeleteUsageByRealm", query = "delete from ClientUsageEntity u where u.realmId = :realmId"),
+})
+public class ClientUsageEntity {
+    // UUID of the client
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    protected String realmId;
+
+    @Column(name = "LAST_USED", nullable = false)
+    protected long lastUsed;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+}
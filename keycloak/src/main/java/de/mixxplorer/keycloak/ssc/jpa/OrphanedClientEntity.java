@@ -0,0 +1,69 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+// Self service client, which seemed to have no existing owner anymore when it got queued (see OrphanedClients).
+// Whether it is still orphaned is checked again before disabling or deleting it.
+@Entity
+@Table(name = "SSC_ORPHANED_CLIENT")
+@NamedQueries({
+    @NamedQuery(name = "sscOrphansByIds", query = "select o from OrphanedClientEntity o where o.id in :ids"),
+    @NamedQuery(name = "sscDueOrphans", query = "select o from OrphanedClientEntity o "
+            + "where o.orphanedTimestamp < :before and o.disabled in :disabled order by o.orphanedTimestamp, o.id"),
+    @NamedQuery(name = "sscCountOrphansByRealm", query = "select count(o) from OrphanedClientEntity o where o.realmId = :realmId"),
+    @NamedQuery(name = "sscDeleteOrphansByRealm", query = "delete from OrphanedClientEntity o where o.realmId = :realmId"),
+})
+public class OrphanedClientEntity {
+    // UUID of the client, a client is queued at most once
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    protected String realmId;
+
+    // the grace period starts at this time
+    @Column(name = "ORPHANED_TIMESTAMP", nullable = false)
+    protected long orphanedTimestamp;
+
+    // disabled clients stay queued, so they can still be deleted if the action changes
+    @Column(name = "DISABLED", nullable = false)
+    protected boolean disabled;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public long getOrphanedTimestamp() {
+        return orphanedTimestamp;
+    }
+
+    public void setOrphanedTimestamp(long orphanedTimestamp) {
+        this.orphanedTimestamp = orphanedTimestamp;
+    }
+
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    public void setDisabled(boolean disabled) {
+        this.disabled = disabled;
+    }
+}
@@ -0,0 +1,26 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class SelfServiceJpaEntityProvider implements JpaEntityProvider {
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(ClientOwnerEntity.class, UserQuotaEntity.class, ClientChangeEntity.class, OrphanedClientEntity.class,
+                ClientUsageEntity.class, ClientLoginsEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/self-service-clients-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return SelfServiceJpaEntityProviderFactory.ID;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,30 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import org.keycloak.Config;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class SelfServiceJpaEntityProviderFactory implements JpaEntityProviderFactory {
+    public static final String ID = "self-service-clients";
+
+    @Override
+    public JpaEntityProvider create(KeycloakSession keycloakSession) {
+        return new SelfServiceJpaEntityProvider();
+    }
+
+    @Override
+    public void init(Config.Scope scope) {}
+
+    @Override
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
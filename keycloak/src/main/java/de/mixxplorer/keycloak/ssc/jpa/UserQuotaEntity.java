@@ -0,0 +1,68 @@
+package de.mixxplorer.keycloak.ssc.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+// Number of self service clients a user (or group) owns. The row is locked while creating clients, which serializes
+// concurrent creations of the same owner across all cluster nodes.
+@Entity
+@Table(name = "SSC_USER_QUOTA")
+@NamedQueries({
+    @NamedQuery(name = "sscAdjustClientCount", query = "update UserQuotaEntity q set q.clientCount = q.clientCount + :delta "
+            + "where q.id = :id and q.clientCount + :delta >= 0"),
+    @NamedQuery(name = "sscDeleteQuotasByRealm", query = "delete from UserQuotaEntity q where q.realmId = :realmId"),
+    @NamedQuery(name = "sscDeleteQuotaByUser", query = "delete from UserQuotaEntity q "
+            + "where q.realmId = :realmId and q.userId = :userId"),
+})
+public class UserQuotaEntity {
+    // derived from realm and user ID, see ClientQuota
+    @Id
+    @Column(name = "ID", length = 36)
+    protected String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    protected String realmId;
+
+    // user ID, or "group:<group-UUID>" for groups (see OwnershipIndex)
+    @Column(name = "USER_ID", nullable = false)
+    protected String userId;
+
+    @Column(name = "CLIENT_COUNT", nullable = false)
+    protected long clientCount;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public long getClientCount() {
+        return clientCount;
+    }
+
+    public void setClientCount(long clientCount) {
+        this.clientCount = clientCount;
+    }
+}
@@ -0,0 +1,226 @@
+package de.mixxplorer.keycloak.ssc.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+// Times the endpoints of the self service API and the phases within them (authentication, quota check, client
+// policies, ...). Meters are registered in the global Micrometer registry, which Keycloak exposes via its metrics
+// endpoint if metrics are enabled. Otherwise, recording is a no-op.
+// One instance lives per request as attribute of the session, so code deep within an endpoint does not need to get
+// it passed explicitly.
+public class RequestMetrics {
+    public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    private static final String REQUEST_TIMER = "keycloak.ssc.requests";
+    private static final String PHASE_TIMER = "keycloak.ssc.phases";
+    private static final String REJECTION_COUNTER = "keycloak.ssc.rejections";
+
+    // used outside of requests, e.g. by background tasks
+    private static final RequestMetrics NOOP = new RequestMetrics(null, null);
+
+    // Registering a meter builds its id and looks it up in the registry, which is too much for every request and
+    // phase. The tags are bounded by the endpoints, phases, outcomes and realms.
+    private static final Map<MeterId, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<MeterId, Counter> COUNTERS = new ConcurrentHashMap<>();
+
+    private final KeycloakSession session;
+    private final String realm;
+    private final long startNanos = System.nanoTime();
+    // phase name to summed up duration in nanoseconds, phases like client policies might run more than once
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+    private boolean serverTiming = false;
+    private String endpoint = "none";
+    private String rejection;
+
+    private RequestMetrics(KeycloakSession session, String realm) {
+        this.session = session;
+        this.realm = realm;
+    }
+
+    public static RequestMetrics start(KeycloakSession session) {
+        final RequestMetrics metrics = new RequestMetrics(session, session.getContext().getRealm().getName());
+        session.setAttribute(RequestMetrics.class.getName(), metrics);
+        return metrics;
+    }
+
+    public static RequestMetrics get(KeycloakSession session) {
+        final RequestMetrics metrics = session.getAttribute(RequestMetrics.class.getName(), RequestMetrics.class);
+        return metrics != null ? metrics : NOOP;
+    }
+
+    // the phase breakdown is only returned to users with the debug role, as it reveals internals
+    public void setServerTiming(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+
+    // Runs and times a phase of the endpoint. Checked exceptions of the phase (e.g. of client policies) are passed on.
+    public <T, E extends Exception> T time(String phase, PhaseBody<T, E> body) throws E {
+        if (this == NOOP) {
+            return body.run();
+        }
+        final long phaseStart = System.nanoTime();
+        try {
+            return body.run();
+        } finally {
+            final long duration = System.nanoTime() - phaseStart;
+            phaseNanos.merge(phase, duration, Long::sum);
+            getTimer(PHASE_TIMER, "phase", phase, "endpoint", endpoint, "realm", realm).record(duration, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Runs and times a phase of the endpoint without result
+    public <E extends Exception> void time(String phase, VoidPhaseBody<E> body) throws E {
+        time(phase, () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    // Counts requests rejected on purpose, e.g. because of the quota or a client policy
+    public void rejected(String reason) {
+        if (this == NOOP) {
+            return;
+        }
+        rejection = reason;
+        final MeterId id = new MeterId(REJECTION_COUNTER, List.of("reason", reason, "realm", realm));
+        final Counter counter = COUNTERS.get(id);
+        (counter != null ? counter : COUNTERS.computeIfAbsent(id, MeterId::registerCounter)).increment();
+    }
+
+    // Runs and times an endpoint, tagged with its outcome. A streamed body is written after the endpoint returned, so
+    // the request is only finished once the body has been written.
+    @SuppressWarnings("unchecked")
+    public <T> T endpoint(String name, Supplier<T> body) {
+        endpoint = name;
+        int status = Response.Status.INTERNAL_SERVER_ERROR.getStatusCode();
+        boolean streaming = false;
+        try {
+            final T result = body.get();
+            if (result instanceof Response response) {
+                status = response.getStatus();
+                if (response.getEntity() instanceof StreamingOutput output && this != NOOP) {
+                    streaming = true;
+                    // the headers are sent before the body, so the Server-Timing only covers the time until then
+                    addServerTimingHeader(System.nanoTime() - startNanos);
+                    return (T) Response.fromResponse(response).entity(timed(output, status)).build();
+                }
+            } else {
+                status = result != null ? Response.Status.OK.getStatusCode() : Response.Status.NO_CONTENT.getStatusCode();
+            }
+            return result;
+        } catch (WebApplicationException exc) {
+            status = exc.getResponse().getStatus();
+            throw exc;
+        } finally {
+            if (!streaming) {
+                finish(status);
+            }
+        }
+    }
+
+    // Runs and times an endpoint without response body
+    public void endpoint(String name, Runnable body) {
+        endpoint(name, () -> {
+            body.run();
+            return null;
+        });
+    }
+
+    // Records requests, which did not reach an endpoint, e.g. because the authentication failed
+    public void failed(RuntimeException exc) {
+        finish(exc instanceof WebApplicationException webExc ? webExc.getResponse().getStatus()
+                : Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+    }
+
+    private StreamingOutput timed(StreamingOutput output, int status) {
+        return outputStream -> {
+            boolean written = false;
+            try {
+                output.write(outputStream);
+                written = true;
+            } finally {
+                record(written ? status : Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), System.nanoTime() - startNanos);
+            }
+        };
+    }
+
+    private void finish(int status) {
+        if (this == NOOP) {
+            return;
+        }
+        final long duration = System.nanoTime() - startNanos;
+        record(status, duration);
+        addServerTimingHeader(duration);
+    }
+
+    private void record(int status, long duration) {
+        getTimer(REQUEST_TIMER, "endpoint", endpoint, "realm", realm, "outcome", getOutcome(status))
+                .record(duration, TimeUnit.NANOSECONDS);
+    }
+
+    private void addServerTimingHeader(long duration) {
+        if (serverTiming) {
+            session.getContext().getHttpResponse().setHeader(SERVER_TIMING_HEADER, getServerTiming(duration));
+        }
+    }
+
+    private static Timer getTimer(String name, String... tags) {
+        final MeterId id = new MeterId(name, List.of(tags));
+        final Timer timer = TIMERS.get(id);
+        return timer != null ? timer : TIMERS.computeIfAbsent(id, MeterId::registerTimer);
+    }
+
+    private String getOutcome(int status) {
+        if (rejection != null) {
+            return rejection + "_rejected";
+        } else if (status >= 500) {
+            return "server_error";
+        } else if (status >= 400) {
+            return "client_error";
+        }
+        return "success";
+    }
+
+    // see https://www.w3.org/TR/server-timing/
+    private String getServerTiming(long totalNanos) {
+        final Map<String, Long> timings = new LinkedHashMap<>(phaseNanos);
+        timings.put("total", totalNanos);
+        return timings.entrySet().stream()
+                .map(entry -> String.format(Locale.ROOT, "%s;dur=%.3f", entry.getKey(), entry.getValue() / 1_000_000.0))
+                .collect(Collectors.joining(", "));
+    }
+
+    private record MeterId(String name, List<String> tags) {
+        private Timer registerTimer() {
+            return Timer.builder(name).tags(tags.toArray(String[]::new)).register(Metrics.globalRegistry);
+        }
+
+        private Counter registerCounter() {
+            return Counter.builder(name).tags(tags.toArray(String[]::new)).register(Metrics.globalRegistry);
+        }
+    }
+
+    @FunctionalInterface
+    public interface PhaseBody<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    @FunctionalInterface
+    public interface VoidPhaseBody<E extends Exception> {
+        void run() throws E;
+    }
+}
@@ -0,0 +1,86 @@
+package de.mixxplorer.keycloak.ssc.orphans;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters of the orphan sweeper on this node since its start. Written by the sweeper only, read by the admin endpoint.
+// The counters are additionally recorded as keycloak_ssc_orphans_total per result and realm.
+public class OrphanSweepStatus {
+    private static final String ORPHAN_COUNTER = "keycloak.ssc.orphans";
+
+    private volatile boolean running = false;
+    private volatile Long lastRunStarted;
+    private volatile Long lastRunFinished;
+    private final Map<String, RealmCounters> realms = new ConcurrentHashMap<>();
+
+    void started(long now) {
+        running = true;
+        lastRunStarted = now;
+    }
+
+    void finished(long now) {
+        running = false;
+        lastRunFinished = now;
+    }
+
+    // clients checked for existing owners
+    void checked(String realmId, String realmName, long count) {
+        count(realmId, realmName, "checked", count).checked.addAndGet(count);
+    }
+
+    // clients found without owners, the grace period starts
+    void found(String realmId, String realmName, long count) {
+        count(realmId, realmName, "found", count).found.addAndGet(count);
+    }
+
+    // queued clients, whose grace period passed
+    void processed(String realmId, String realmName) {
+        count(realmId, realmName, "processed", 1).processed.incrementAndGet();
+    }
+
+    void disabled(String realmId, String realmName) {
+        count(realmId, realmName, "disabled", 1).disabled.incrementAndGet();
+    }
+
+    void deleted(String realmId, String realmName) {
+        count(realmId, realmName, "deleted", 1).deleted.incrementAndGet();
+    }
+
+    /**
+     * Returns the counters of a realm.
+     *
+     * @param queued clients of the realm currently queued, including the ones disabled already
+     */
+    public Realm getRealm(String realmId, long queued) {
+        final RealmCounters counters = realms.getOrDefault(realmId, new RealmCounters());
+        return new Realm(running, lastRunStarted, lastRunFinished, queued, counters.checked.get(), counters.found.get(),
+                counters.processed.get(), counters.disabled.get(), counters.deleted.get());
+    }
+
+    private RealmCounters count(String realmId, String realmName, String result, long count) {
+        if (count > 0) {
+            Counter.builder(ORPHAN_COUNTER)
+                    .tag("result", result)
+                    .tag("realm", realmName)
+                    .register(Metrics.globalRegistry)
+                    .increment(count);
+        }
+        return realms.computeIfAbsent(realmId, id -> new RealmCounters());
+    }
+
+    // timestamps are in milliseconds, null if the sweeper did not run on this node yet
+    public record Realm(boolean running, Long lastRunStarted, Long lastRunFinished, long queued, long checked, long found,
+                        long processed, long disabled, long deleted) {}
+
+    private static class RealmCounters {
+        private final AtomicLong checked = new AtomicLong();
+        private final AtomicLong found = new AtomicLong();
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong disabled = new AtomicLong();
+        private final AtomicLong deleted = new AtomicLong();
+    }
+}
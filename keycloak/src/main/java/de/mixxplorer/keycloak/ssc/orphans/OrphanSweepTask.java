@@ -0,0 +1,202 @@
+package de.mixxplorer.keycloak.ssc.orphans;
+
+import de.mixxplorer.keycloak.ssc.Util;
+import de.mixxplorer.keycloak.ssc.jpa.OrphanedClientEntity;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.ClientManager;
+import org.keycloak.services.managers.RealmManager;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.List;
+import java.util.Locale;
+
+// Disables or deletes self service clients, which have no existing owner for longer than the grace period.
+// Runs via ClusterAwareScheduledTaskRunner, so only one cluster node runs it per interval. Each run
+// * checks a limited number of self service clients for orphans, continuing where the previous run on this node stopped
+//   (see OrphanedClients), and
+// * handles a limited number of queued clients, whose grace period passed.
+// Both are done in small batches, each in its own transaction. Whether a client is still orphaned is checked again
+// right before disabling or deleting it.
+public class OrphanSweepTask implements ScheduledTask {
+    public static final String TASK_NAME = "self-service-clients-orphan-sweep";
+
+    private static final Logger logger = Logger.getLogger(OrphanSweepTask.class);
+
+    // What happens to orphans after the grace period
+    public enum Action {
+        DISABLE,
+        DELETE;
+
+        // returns null for "none", which disables the sweeper
+        public static Action parse(String value) {
+            if (value == null || value.equals("none")) {
+                return null;
+            }
+            try {
+                return valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException exc) {
+                throw new IllegalArgumentException("Unknown orphan action " + value + ", expected none, disable or delete");
+            }
+        }
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final OrphanSweepStatus status;
+    private final Action action;
+    private final long gracePeriodMillis;
+    private final int batchSize;
+    private final int maxChecksPerRun;
+    private final int maxActionsPerRun;
+
+    // position of the walk over all self service clients on this node
+    private String cursorRealmId;
+    private String cursorClientId = "";
+
+    public OrphanSweepTask(KeycloakSessionFactory sessionFactory, OrphanSweepStatus status, Action action,
+                           long gracePeriodMillis, int batchSize, int maxChecksPerRun, int maxActionsPerRun) {
+        this.sessionFactory = sessionFactory;
+        this.status = status;
+        this.action = action;
+        this.gracePeriodMillis = gracePeriodMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxChecksPerRun = maxChecksPerRun;
+        this.maxActionsPerRun = maxActionsPerRun;
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    // The session of the runner is only used to list the realms, the batches are run in their own transactions
+    @Override
+    public void run(KeycloakSession session) {
+        final List<String> realmIds = session.realms().getRealmsStream().map(RealmModel::getId).sorted().toList();
+
+        status.started(System.currentTimeMillis());
+        try {
+            checkClients(realmIds);
+            handleDue();
+        } finally {
+            status.finished(System.currentTimeMillis());
+        }
+    }
+
+    // Walks the realms in the order of their IDs and the clients in the order of their UUIDs, at most once per run
+    private void checkClients(List<String> realmIds) {
+        if (realmIds.isEmpty()) {
+            return;
+        }
+        int realmIndex = cursorRealmId != null ? realmIds.indexOf(cursorRealmId) : 0;
+        if (realmIndex < 0) {
+            realmIndex = 0;
+            cursorClientId = "";
+        }
+
+        int checked = 0;
+        while (checked < maxChecksPerRun) {
+            final String realmId = realmIds.get(realmIndex);
+            final String afterId = cursorClientId;
+            final int max = Math.min(batchSize, maxChecksPerRun - checked);
+            final List<String> clientIds;
+            try {
+                clientIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                        session -> new OrphanedClients(session).getClientIds(realmId, afterId, max));
+            } catch (RuntimeException exc) {
+                logger.warn("Could not list self service clients to check for existing owners, retrying with the next run", exc);
+                break;
+            }
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    final RealmModel realm = session.realms().getRealm(realmId);
+                    if (realm != null) {
+                        new OrphanedClients(session).checkClients(realm, clientIds, Time.currentTimeMillis(), status);
+                    }
+                });
+            } catch (RuntimeException exc) {
+                // skipped until the next walk, so a single broken client does not stop the sweeper
+                logger.warnf(exc, "Could not check %d self service clients of realm %s for existing owners, skipping them",
+                        clientIds.size(), realmId);
+            }
+            checked += clientIds.size();
+            if (clientIds.size() == max) {
+                cursorRealmId = realmId;
+                cursorClientId = clientIds.get(clientIds.size() - 1);
+                continue;
+            }
+
+            // the realm is done, the walk starts over with the next run after the last realm
+            realmIndex++;
+            cursorClientId = "";
+            if (realmIndex == realmIds.size()) {
+                cursorRealmId = null;
+                break;
+            }
+            cursorRealmId = realmIds.get(realmIndex);
+        }
+        logger.debugf("Checked %d self service clients for existing owners", checked);
+    }
+
+    private void handleDue() {
+        final long before = Time.currentTimeMillis() - gracePeriodMillis;
+        int handled = 0;
+        while (handled < maxActionsPerRun) {
+            final int max = Math.min(batchSize, maxActionsPerRun - handled);
+            final int batch;
+            try {
+                batch = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> handleDue(session, before, max));
+            } catch (RuntimeException exc) {
+                logger.warn("Could not handle orphaned self service clients, retrying with the next run", exc);
+                break;
+            }
+            handled += batch;
+            if (batch < max) {
+                break;
+            }
+        }
+        logger.debugf("Handled %d orphaned self service clients", handled);
+    }
+
+    // ClientModel.updateClient is deprecated, but still fires the update event, as RepresentationToModel.updateClient does
+    @SuppressWarnings("deprecation")
+    private int handleDue(KeycloakSession session, long before, int max) {
+        final OrphanedClients orphans = new OrphanedClients(session);
+        final List<OrphanedClientEntity> due = orphans.getDue(before, action == Action.DELETE, max);
+        for (OrphanedClientEntity entity : due) {
+            final RealmModel realm = session.realms().getRealm(entity.getRealmId());
+            final ClientModel client = realm != null ? realm.getClientById(entity.getId()) : null;
+            if (client == null) {
+                orphans.remove(entity.getId());
+                continue;
+            }
+            status.processed(realm.getId(), realm.getName());
+            if (!orphans.isOrphaned(realm, Util.getClientOwnerUserIds(client), Util.getClientOwnerGroupIds(client))) {
+                orphans.remove(entity.getId());
+                continue;
+            }
+
+            if (action == Action.DELETE) {
+                // the removal event dequeues the client already, unless the provider events are not registered
+                new ClientManager(new RealmManager(session)).removeClient(realm, client);
+                orphans.remove(entity.getId());
+                status.deleted(realm.getId(), realm.getName());
+                logger.debugf("Deleted orphaned self service client %s in realm %s", client.getClientId(), realm.getName());
+            } else {
+                if (client.isEnabled()) {
+                    client.setEnabled(false);
+                    client.updateClient();
+                    status.disabled(realm.getId(), realm.getName());
+                    logger.debugf("Disabled orphaned self service client %s in realm %s", client.getClientId(), realm.getName());
+                }
+                entity.setDisabled(true);
+            }
+        }
+        return due.size();
+    }
+}
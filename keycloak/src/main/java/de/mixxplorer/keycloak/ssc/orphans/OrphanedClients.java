@@ -0,0 +1,218 @@
+package de.mixxplorer.keycloak.ssc.orphans;
+
+import de.mixxplorer.keycloak.ssc.jpa.OrphanedClientEntity;
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+
+// Queue of self service clients without any existing owner, i.e. all users and groups of their owner attributes have
+// been removed. Owner attributes of removed users and groups stay on the client, so these clients would live on forever.
+// Clients are queued when one of their owners is removed (see SelfServiceProviderFactory) and by the sweeper walking
+// all self service clients, which also finds clients orphaned while the sweeper was disabled. Owners are checked via
+// the client attribute table, so checking clients does not load them into the realm cache.
+public class OrphanedClients {
+    private static final Logger logger = Logger.getLogger(OrphanedClients.class);
+
+    private final KeycloakSession session;
+    private final EntityManager em;
+
+    public OrphanedClients(KeycloakSession session) {
+        this.session = session;
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Queues the clients of a removed user in the background, once the transaction removing the user committed.
+     * This way, the removal neither waits for the lookup of the clients, nor fails because of it.
+     *
+     * @param status counters of the sweeper
+     */
+    public static void queueUserClientsAfterCommit(KeycloakSession session, RealmModel realm, String userId,
+                                                   OrphanSweepStatus status) {
+        final Executor executor = session.getProvider(ExecutorsProvider.class).getExecutor("self-service-clients");
+        session.getTransactionManager().enlistAfterCompletion(new QueueUserClients(session.getKeycloakSessionFactory(),
+                executor, realm.getId(), userId, status));
+    }
+
+    // UUIDs of the self service clients of a realm following the given client UUID, in the order of their UUIDs
+    public List<String> getClientIds(String realmId, String afterId, int max) {
+        return em.createQuery("select distinct a.client.id from ClientAttributeEntity a "
+                        + "where a.client.realmId = :realmId and a.client.id > :afterId "
+                        + "and (a.name like :userPrefix or a.name like :groupPrefix) and a.value = :value "
+                        + "order by a.client.id", String.class)
+                .setParameter("realmId", realmId)
+                .setParameter("afterId", afterId)
+                .setParameter("userPrefix", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("groupPrefix", CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    // Queues the given clients if they are orphaned, and dequeues them if not
+    public void checkClients(RealmModel realm, List<String> clientIds, long now, OrphanSweepStatus status) {
+        if (!clientIds.isEmpty()) {
+            updateQueue(realm, clientIds, now, status);
+        }
+    }
+
+    // Queues the clients owned by a removed user, which have no other existing owner
+    public void queueUserClients(RealmModel realm, String userId, long now, OrphanSweepStatus status) {
+        final List<String> clientIds = em.createQuery("select a.client.id from ClientAttributeEntity a "
+                        + "where a.client.realmId = :realmId and a.name = :name and a.value = :value", String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("name", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + userId)
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .getResultList();
+        if (!clientIds.isEmpty()) {
+            updateQueue(realm, clientIds, now, status);
+        }
+    }
+
+    /**
+     * Returns queued clients, whose grace period passed.
+     *
+     * @param includeDisabled whether clients already disabled by the sweeper are returned as well
+     */
+    public List<OrphanedClientEntity> getDue(long before, boolean includeDisabled, int max) {
+        return em.createNamedQuery("sscDueOrphans", OrphanedClientEntity.class)
+                .setParameter("before", before)
+                .setParameter("disabled", includeDisabled ? List.of(false, true) : List.of(false))
+                .setMaxResults(max)
+                .getResultList();
+    }
+
+    public long countQueued(RealmModel realm) {
+        return em.createNamedQuery("sscCountOrphansByRealm", Long.class)
+                .setParameter("realmId", realm.getId())
+                .getSingleResult();
+    }
+
+    // Whether none of the given owners exists anymore. Clients without any owner are no self service clients.
+    public boolean isOrphaned(RealmModel realm, Collection<String> userIds, Collection<String> groupIds) {
+        if (userIds.isEmpty() && groupIds.isEmpty()) {
+            return false;
+        }
+        return userIds.stream().noneMatch(userId -> session.users().getUserById(realm, userId) != null)
+                && groupIds.stream().noneMatch(groupId -> session.groups().getGroupById(realm, groupId) != null);
+    }
+
+    public void remove(String clientUuid) {
+        final OrphanedClientEntity entity = em.find(OrphanedClientEntity.class, clientUuid);
+        if (entity != null) {
+            em.remove(entity);
+        }
+    }
+
+    public void removeRealm(String realmId) {
+        em.createNamedQuery("sscDeleteOrphansByRealm").setParameter("realmId", realmId).executeUpdate();
+    }
+
+    // Queues orphaned clients, which are not queued yet, and removes clients, which got an existing owner again
+    private void updateQueue(RealmModel realm, List<String> clientIds, long now, OrphanSweepStatus status) {
+        final Map<String, Set<String>> userIds = new HashMap<>();
+        final Map<String, Set<String>> groupIds = new HashMap<>();
+        em.createQuery("select a.client.id, a.name from ClientAttributeEntity a where a.client.id in :clientIds "
+                        + "and (a.name like :userPrefix or a.name like :groupPrefix) and a.value = :value", Object[].class)
+                .setParameter("clientIds", clientIds)
+                .setParameter("userPrefix", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("groupPrefix", CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .getResultStream()
+                .forEach(row -> {
+                    final String clientId = (String) row[0];
+                    final String name = (String) row[1];
+                    if (name.startsWith(CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX)) {
+                        userIds.computeIfAbsent(clientId, id -> new HashSet<>())
+                                .add(name.substring(CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX.length()));
+                    } else {
+                        groupIds.computeIfAbsent(clientId, id -> new HashSet<>())
+                                .add(name.substring(CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX.length()));
+                    }
+                });
+        final Map<String, OrphanedClientEntity> queued = em.createNamedQuery("sscOrphansByIds", OrphanedClientEntity.class)
+                .setParameter("ids", clientIds)
+                .getResultStream()
+                .collect(Collectors.toMap(OrphanedClientEntity::getId, Function.identity()));
+
+        long found = 0;
+        for (String clientId : clientIds) {
+            final boolean orphaned = isOrphaned(realm, userIds.getOrDefault(clientId, Set.of()),
+                    groupIds.getOrDefault(clientId, Set.of()));
+            final OrphanedClientEntity entity = queued.get(clientId);
+            if (orphaned && entity == null) {
+                final OrphanedClientEntity orphan = new OrphanedClientEntity();
+                orphan.setId(clientId);
+                orphan.setRealmId(realm.getId());
+                orphan.setOrphanedTimestamp(now);
+                orphan.setDisabled(false);
+                em.persist(orphan);
+                found++;
+            } else if (!orphaned && entity != null) {
+                em.remove(entity);
+            }
+        }
+        status.checked(realm.getId(), realm.getName(), clientIds.size());
+        status.found(realm.getId(), realm.getName(), found);
+    }
+
+    private static class QueueUserClients extends AbstractKeycloakTransaction {
+        private final KeycloakSessionFactory sessionFactory;
+        private final Executor executor;
+        private final String realmId;
+        private final String userId;
+        private final OrphanSweepStatus status;
+
+        QueueUserClients(KeycloakSessionFactory sessionFactory, Executor executor, String realmId, String userId,
+                         OrphanSweepStatus status) {
+            this.sessionFactory = sessionFactory;
+            this.executor = executor;
+            this.realmId = realmId;
+            this.userId = userId;
+            this.status = status;
+        }
+
+        @Override
+        protected void commitImpl() {
+            executor.execute(() -> {
+                try {
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                        final RealmModel realm = session.realms().getRealm(realmId);
+                        if (realm != null) {
+                            new OrphanedClients(session).queueUserClients(realm, userId, Time.currentTimeMillis(), status);
+                        }
+                    });
+                } catch (RuntimeException exc) {
+                    // the sweeper finds the clients later on
+                    logger.warnf(exc, "Could not queue self service clients of removed user %s", userId);
+                }
+            });
+        }
+
+        @Override
+        protected void rollbackImpl() {
+            // the user still exists
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package de.mixxplorer.keycloak.ssc.ownership;
+
+import de.mixxplorer.keycloak.ssc.Util;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Everyone a user manages clients as: the user itself and its effective groups, which are the groups of the user and
+// all their parent groups. Resolved once per request, so checking many clients neither walks the group hierarchy nor
+// looks up an attribute per group.
+public class ClientOwners {
+    private static final String SESSION_ATTRIBUTE_PREFIX = "ssc.clientOwners.";
+
+    private final String userId;
+    private final String userManageClientAttributeName;
+    private final Set<String> groupIds;
+
+    ClientOwners(UserModel user, Set<String> groupIds) {
+        this.userId = user.getId();
+        this.userManageClientAttributeName = Util.getUserManageClientAttributeName(user);
+        this.groupIds = groupIds;
+    }
+
+    public static ClientOwners of(KeycloakSession session, UserModel user) {
+        final String attribute = SESSION_ATTRIBUTE_PREFIX + user.getId();
+        ClientOwners owners = session.getAttribute(attribute, ClientOwners.class);
+        if (owners == null) {
+            owners = new ClientOwners(user, resolveGroupIds(user));
+            session.setAttribute(attribute, owners);
+        }
+        return owners;
+    }
+
+    private static Set<String> resolveGroupIds(UserModel user) {
+        final Set<String> groupIds = new HashSet<>();
+        user.getGroupsStream().forEach(group -> {
+            // once a group is known, its parents are known as well
+            GroupModel current = group;
+            while (current != null && groupIds.add(current.getId())) {
+                current = current.getParent();
+            }
+        });
+        return Set.copyOf(groupIds);
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Set<String> getGroupIds() {
+        return groupIds;
+    }
+
+    public boolean isMember(String groupId) {
+        return groupIds.contains(groupId);
+    }
+
+    // keys of the user and its groups within the ownership index
+    public List<String> getIndexKeys() {
+        final List<String> keys = new ArrayList<>(groupIds.size() + 1);
+        keys.add(userId);
+        groupIds.forEach(groupId -> keys.add(OwnershipIndex.getGroupKey(groupId)));
+        return keys;
+    }
+
+    public boolean hasAccess(ClientModel client) {
+        return Util.hasUserAccessToClient(client, userManageClientAttributeName)
+                || (!groupIds.isEmpty() && Util.hasGroupAccessToClient(client, groupIds));
+    }
+}
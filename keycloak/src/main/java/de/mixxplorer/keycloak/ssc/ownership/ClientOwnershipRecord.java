@@ -0,0 +1,15 @@
+package de.mixxplorer.keycloak.ssc.ownership;
+
+import java.util.List;
+
+/**
+ * Line of the ownership report of a realm.
+ *
+ * @param id UUID of the client
+ * @param owners IDs of the users managing the client
+ */
+public record ClientOwnershipRecord(String id, String clientId, List<String> owners, boolean enabled, int redirectUriCount,
+                                    boolean publicClient, boolean bearerOnly, boolean standardFlowEnabled,
+                                    boolean implicitFlowEnabled, boolean directAccessGrantsEnabled,
+                                    boolean serviceAccountsEnabled) {
+}
@@ -0,0 +1,88 @@
+package de.mixxplorer.keycloak.ssc.ownership;
+
+import de.mixxplorer.keycloak.ssc.usage.ClientUsage;
+import jakarta.ws.rs.BadRequestException;
+import org.keycloak.models.ClientModel;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+// Supported sort orders of client lists. The client UUID is always used as the last criteria, so pages are stable.
+public enum ClientSort {
+    CLIENT_ID("clientId", "c.clientId", Comparator.comparing(ClientModel::getClientId,
+            Comparator.nullsFirst(Comparator.naturalOrder()))),
+    NAME("name", "c.name", Comparator.comparing(ClientModel::getName, Comparator.nullsFirst(Comparator.naturalOrder()))),
+    // the creation time is only known by the ownership index, the first owner added is the creation
+    CREATED("created", "min(o.createdTimestamp)", (a, b) -> 0),
+    // the usage is not indexed, all clients of a list are sorted by it in memory (see getUsageComparator)
+    LAST_USED("lastUsed", null, ClientUsage::lastUsed),
+    LOGINS("loginsLast30Days", null, ClientUsage::logins);
+
+    private final String parameter;
+    private final String jpqlExpression;
+    private final Comparator<ClientModel> comparator;
+    private final ToLongFunction<ClientUsage> usageValue;
+
+    ClientSort(String parameter, String jpqlExpression, Comparator<ClientModel> comparator) {
+        this(parameter, jpqlExpression, comparator, null);
+    }
+
+    ClientSort(String parameter, String jpqlExpression, ToLongFunction<ClientUsage> usageValue) {
+        this(parameter, jpqlExpression, (a, b) -> 0, usageValue);
+    }
+
+    ClientSort(String parameter, String jpqlExpression, Comparator<ClientModel> comparator,
+               ToLongFunction<ClientUsage> usageValue) {
+        this.parameter = parameter;
+        this.jpqlExpression = jpqlExpression;
+        this.comparator = comparator.thenComparing(ClientModel::getId);
+        this.usageValue = usageValue;
+    }
+
+    /**
+     * Parses the sort query parameter.
+     *
+     * @param value field name, prefixed with "-" for descending order
+     * @return the sort order
+     * @throws BadRequestException if the field is not supported
+     */
+    public static ClientSort parse(String value) {
+        final String field = value.startsWith("-") ? value.substring(1) : value;
+        for (ClientSort sort : values()) {
+            if (sort.parameter.equals(field)) {
+                return sort;
+            }
+        }
+        throw new BadRequestException("Unsupported sort field " + field);
+    }
+
+    public static boolean isDescending(String value) {
+        return value.startsWith("-");
+    }
+
+    // ORDER BY clause for the ownership index, where o are the index entries grouped by client and c the client entity
+    String getOrderBy(boolean descending) {
+        final String direction = descending ? " desc" : " asc";
+        return jpqlExpression + direction + ", o.clientId" + direction;
+    }
+
+    public Comparator<ClientModel> getComparator(boolean descending) {
+        return descending ? comparator.reversed() : comparator;
+    }
+
+    public boolean isUsage() {
+        return usageValue != null;
+    }
+
+    /**
+     * Returns the order of client UUIDs by their usage, only supported by usage sorts.
+     *
+     * @param usage usage by client UUID, containing all sorted clients
+     */
+    public Comparator<String> getUsageComparator(Map<String, ClientUsage> usage, boolean descending) {
+        final Comparator<String> usageComparator = Comparator.<String>comparingLong(
+                clientUuid -> usageValue.applyAsLong(usage.get(clientUuid))).thenComparing(Comparator.naturalOrder());
+        return descending ? usageComparator.reversed() : usageComparator;
+    }
+}
@@ -0,0 +1,211 @@
+package de.mixxplorer.keycloak.ssc.ownership;
+
+import de.mixxplorer.keycloak.ssc.Util;
+import de.mixxplorer.keycloak.ssc.jpa.ClientOwnerEntity;
+import de.mixxplorer.keycloak.ssc.quota.ClientQuota;
+import jakarta.persistence.EntityManager;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+
+// Persistent index of which user or group owns which self service client.
+// Searching clients by attribute is a realm-wide query, which additionally has to be filtered afterward (see
+// https://github.com/keycloak/keycloak/issues/25976). This index answers the same question with a single indexed lookup.
+// The client attributes stay the source of truth, the index is only derived from them.
+// Owners are identified by keys, which are the user ID for users and "group:<group-UUID>" for groups. This way, all
+// clients of a user and its groups are found with a single lookup.
+// Every change of the index is reflected in the quota counters of the affected owners (see ClientQuota).
+public class OwnershipIndex {
+    private static final String GROUP_KEY_PREFIX = "group:";
+
+    private final EntityManager em;
+    private final ClientQuota quota;
+
+    public OwnershipIndex(KeycloakSession session) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        this.quota = new ClientQuota(session);
+    }
+
+    public static String getGroupKey(String groupId) {
+        return GROUP_KEY_PREFIX + groupId;
+    }
+
+    // Returns the UUIDs of the clients owned by the user or one of its groups, joined with the client table only for
+    // sorting. Clients owned by more than one of them are grouped into one row.
+    public Stream<String> getClientIds(RealmModel realm, ClientOwners owners, ClientSort sort, boolean descending,
+                                       int first, int max) {
+        return em.createQuery("select o.clientId from ClientOwnerEntity o, ClientEntity c "
+                        + "where c.id = o.clientId and o.realmId = :realmId and o.userId in :owners "
+                        + "group by o.clientId, c.clientId, c.name "
+                        + "order by " + sort.getOrderBy(descending), String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("owners", owners.getIndexKeys())
+                .setFirstResult(first)
+                .setMaxResults(max)
+                .getResultStream();
+    }
+
+    // keys of all users and groups owning the client, according to its attributes
+    public static Set<String> getOwnerKeys(ClientModel client) {
+        final Set<String> owners = new HashSet<>(Util.getClientOwnerUserIds(client));
+        Util.getClientOwnerGroupIds(client).forEach(groupId -> owners.add(getGroupKey(groupId)));
+        return owners;
+    }
+
+    public long countClients(RealmModel realm, ClientOwners owners) {
+        return em.createNamedQuery("sscCountClientsByOwners", Long.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("owners", owners.getIndexKeys())
+                .getSingleResult();
+    }
+
+    // number of clients owned by a single user or group, as counted by its quota
+    public long countClients(RealmModel realm, String ownerKey) {
+        return em.createNamedQuery("sscCountClientsByOwner", Long.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", ownerKey)
+                .getSingleResult();
+    }
+
+    // Brings the index entries of a single client in line with its owner attributes
+    public void reindexClient(ClientModel client) {
+        final Set<String> owners = getOwnerKeys(client);
+        final Set<String> indexed = new HashSet<>();
+
+        em.createNamedQuery("sscOwnersByClient", ClientOwnerEntity.class)
+                .setParameter("clientId", client.getId())
+                .getResultStream()
+                .forEach(entity -> {
+                    if (owners.contains(entity.getUserId())) {
+                        indexed.add(entity.getUserId());
+                    } else {
+                        removeOwner(entity);
+                    }
+                });
+
+        for (String ownerKey : owners) {
+            if (!indexed.contains(ownerKey)) {
+                addOwner(client.getRealm().getId(), client.getId(), ownerKey);
+            }
+        }
+    }
+
+    public void removeClient(String clientUuid) {
+        em.createNamedQuery("sscOwnersByClient", ClientOwnerEntity.class)
+                .setParameter("clientId", clientUuid)
+                .getResultStream()
+                .forEach(this::removeOwner);
+    }
+
+    // Removes a deleted group as owner from all its clients and reindexes them. Keycloak invalidates the cached clients
+    // on the attribute change already. Entries without matching attribute are removed afterward.
+    // Returns the changed clients, so the caller can update everything else derived from their owners.
+    public List<ClientModel> removeGroup(RealmModel realm, String groupId) {
+        final String attribute = Util.getGroupManageClientAttributeName(groupId);
+        final List<ClientModel> clients = em.createQuery("select a.client.id from ClientAttributeEntity a "
+                        + "where a.client.realmId = :realmId and a.name = :name", String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("name", attribute)
+                .getResultList()
+                .stream()
+                .map(realm::getClientById)
+                .filter(Objects::nonNull)
+                .toList();
+        for (ClientModel client : clients) {
+            client.removeAttribute(attribute);
+            reindexClient(client);
+        }
+        em.createNamedQuery("sscDeleteOwnersByOwner")
+                .setParameter("realmId", realm.getId())
+                .setParameter("userId", getGroupKey(groupId))
+                .executeUpdate();
+        return clients;
+    }
+
+    public void removeRealm(String realmId) {
+        em.createNamedQuery("sscDeleteOwnersByRealm").setParameter("realmId", realmId).executeUpdate();
+        quota.removeRealm(realmId);
+    }
+
+    // Rebuilds the index of a whole realm from the owner attributes of its clients. Only the difference is written,
+    // so running it on an up-to-date index is cheap. Quota counters of owners with changed entries are counted again,
+    // all other counters are still correct.
+    public void rebuild(RealmModel realm) {
+        final Map<String, ClientOwnerEntity> indexed = new HashMap<>();
+        em.createNamedQuery("sscOwnersByRealm", ClientOwnerEntity.class)
+                .setParameter("realmId", realm.getId())
+                .getResultStream()
+                .forEach(entity -> indexed.put(entity.getClientId() + "/" + entity.getUserId(), entity));
+
+        final Set<String> changedOwners = new TreeSet<>();
+        rebuildOwners(realm, CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX, "", indexed, changedOwners);
+        rebuildOwners(realm, CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX, GROUP_KEY_PREFIX, indexed, changedOwners);
+
+        // everything left over has no matching attribute anymore
+        indexed.values().forEach(entity -> {
+            em.remove(entity);
+            changedOwners.add(entity.getUserId());
+        });
+
+        // in a fixed order, so concurrent rebuilds do not deadlock on the counter rows
+        for (String ownerKey : changedOwners) {
+            quota.recount(realm.getId(), ownerKey, () -> countClients(realm, ownerKey));
+        }
+    }
+
+    // Adds the index entries of all owner attributes with the given prefix, which are not indexed yet.
+    // Queries the attribute table directly, so we do not have to load every client of the realm.
+    private void rebuildOwners(RealmModel realm, String attributePrefix, String keyPrefix,
+                               Map<String, ClientOwnerEntity> indexed, Set<String> changedOwners) {
+        em.createQuery("select a.client.id, a.name from ClientAttributeEntity a "
+                        + "where a.client.realmId = :realmId and a.name like :prefix and a.value = :value", Object[].class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("prefix", attributePrefix + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .getResultStream()
+                .forEach(row -> {
+                    final String clientId = (String) row[0];
+                    final String ownerKey = keyPrefix + ((String) row[1]).substring(attributePrefix.length());
+                    if (indexed.remove(clientId + "/" + ownerKey) == null) {
+                        persistOwner(realm.getId(), clientId, ownerKey, null);
+                        changedOwners.add(ownerKey);
+                    }
+                });
+    }
+
+    private void addOwner(String realmId, String clientUuid, String ownerKey) {
+        persistOwner(realmId, clientUuid, ownerKey, Time.currentTimeMillis());
+        quota.adjust(realmId, ownerKey, 1);
+    }
+
+    private void removeOwner(ClientOwnerEntity entity) {
+        em.remove(entity);
+        quota.adjust(entity.getRealmId(), entity.getUserId(), -1);
+    }
+
+    private void persistOwner(String realmId, String clientUuid, String ownerKey, Long createdTimestamp) {
+        final ClientOwnerEntity entity = new ClientOwnerEntity();
+        entity.setId(KeycloakModelUtils.generateId());
+        entity.setRealmId(realmId);
+        entity.setClientId(clientUuid);
+        entity.setUserId(ownerKey);
+        entity.setCreatedTimestamp(createdTimestamp);
+        em.persist(entity);
+    }
+}
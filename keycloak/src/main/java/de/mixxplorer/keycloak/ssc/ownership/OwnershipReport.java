@@ -0,0 +1,102 @@
+package de.mixxplorer.keycloak.ssc.ownership;
+
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+
+// Lists all self service clients of a realm with their owners.
+// The clients are read in chunks ordered by their UUID (keyset pagination), so neither the database nor this node has
+// to hold the whole realm at once. Like the index rebuild, this reads the attribute table directly, so the report is
+// correct even if the ownership index is not ready yet, and no client models end up in the realm cache.
+public class OwnershipReport {
+    private final EntityManager em;
+    private final int chunkSize;
+
+    public OwnershipReport(KeycloakSession session, int chunkSize) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        this.chunkSize = chunkSize;
+    }
+
+    // The next chunk is only read once the previous one has been consumed
+    public Stream<ClientOwnershipRecord> stream(RealmModel realm) {
+        final Iterator<List<ClientOwnershipRecord>> chunks = new Iterator<>() {
+            private String lastId = "";
+            private List<ClientOwnershipRecord> next;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    next = readChunk(realm.getId(), lastId);
+                    done = next.size() < chunkSize;
+                    if (next.isEmpty()) {
+                        next = null;
+                    } else {
+                        lastId = next.get(next.size() - 1).id();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public List<ClientOwnershipRecord> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final List<ClientOwnershipRecord> chunk = next;
+                next = null;
+                return chunk;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .flatMap(List::stream);
+    }
+
+    private List<ClientOwnershipRecord> readChunk(String realmId, String lastId) {
+        final List<Object[]> rows = em.createQuery("select c.id, c.clientId, c.enabled, size(c.redirectUris), c.publicClient, "
+                        + "c.bearerOnly, c.standardFlowEnabled, c.implicitFlowEnabled, c.directAccessGrantsEnabled, "
+                        + "c.serviceAccountsEnabled from ClientEntity c where c.realmId = :realmId and c.id > :lastId "
+                        + "and exists (select a.name from ClientAttributeEntity a "
+                        + "where a.client = c and a.name like :prefix and a.value = :value) "
+                        + "order by c.id", Object[].class)
+                .setParameter("realmId", realmId)
+                .setParameter("lastId", lastId)
+                .setParameter("prefix", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .setMaxResults(chunkSize)
+                .getResultList();
+        if (rows.isEmpty()) {
+            return List.of();
+        }
+
+        final Map<String, List<String>> owners = new TreeMap<>();
+        em.createQuery("select a.client.id, a.name from ClientAttributeEntity a "
+                        + "where a.client.id in :clientIds and a.name like :prefix and a.value = :value", Object[].class)
+                .setParameter("clientIds", rows.stream().map(row -> (String) row[0]).toList())
+                .setParameter("prefix", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .getResultStream()
+                .forEach(row -> owners.computeIfAbsent((String) row[0], id -> new ArrayList<>())
+                        .add(((String) row[1]).substring(CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX.length())));
+
+        return rows.stream().map(row -> new ClientOwnershipRecord((String) row[0], (String) row[1],
+                owners.getOrDefault((String) row[0], List.of()), (Boolean) row[2], ((Number) row[3]).intValue(),
+                (Boolean) row[4], (Boolean) row[5], (Boolean) row[6], (Boolean) row[7], (Boolean) row[8], (Boolean) row[9])).toList();
+    }
+}
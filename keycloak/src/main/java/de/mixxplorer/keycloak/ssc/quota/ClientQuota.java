@@ -0,0 +1,155 @@
+package de.mixxplorer.keycloak.ssc.quota;
+
+import de.mixxplorer.keycloak.ssc.jpa.UserQuotaEntity;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import de.mixxplorer.keycloak.ssc.realm.RealmActivation;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import jakarta.ws.rs.ForbiddenException;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.RoleUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+import static de.mixxplorer.keycloak.ssc.Constants.GROUP_MAX_CLIENTS_ATTRIBUTE;
+import static de.mixxplorer.keycloak.ssc.Constants.ROLE_MAX_CLIENTS_ATTRIBUTE;
+
+// Per-user and per-group counter of owned self service clients.
+// The counter is maintained together with the ownership index (see OwnershipIndex), so reading it is a single lookup.
+// Checking the quota locks the counter row until the end of the transaction. This way, concurrent creations of the
+// same owner are serialized by the database, regardless of the node they are running on.
+public class ClientQuota {
+    private static final Logger logger = Logger.getLogger(ClientQuota.class);
+
+    private final KeycloakSession session;
+    private final EntityManager em;
+
+    public ClientQuota(KeycloakSession session) {
+        this.session = session;
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    // Roles of the user (including composite and group roles) overwrite the limit of the realm. The limit is not read
+    // from the user attributes, as users can edit those themselves if unmanaged attributes are enabled.
+    public static int getLimit(RealmActivation activation, UserModel user) {
+        return RoleUtils.getDeepUserRoleMappings(user).stream()
+                .map(role -> role.getFirstAttribute(ROLE_MAX_CLIENTS_ATTRIBUTE))
+                .filter(Objects::nonNull)
+                .mapToInt(value -> RealmActivation.parseLimit(value, activation.maxClientsPerUser()))
+                .max()
+                .orElse(activation.maxClientsPerUser());
+    }
+
+    // Groups without the attribute are not limited, their clients still count for the users creating them
+    public static Integer getLimit(GroupModel group) {
+        final String value = group.getFirstAttribute(GROUP_MAX_CLIENTS_ATTRIBUTE);
+        return value != null ? RealmActivation.parseLimit(value, Integer.MAX_VALUE) : null;
+    }
+
+    /**
+     * Checks whether the user is allowed to create additional clients and locks the counter of the user for the rest
+     * of the transaction.
+     *
+     * @param currentCount used to initialize the counter, if the user has none yet
+     * @throws ForbiddenException if the user would exceed the limit
+     */
+    public void checkQuota(RealmModel realm, UserModel user, int limit, int additionalClients, LongSupplier currentCount) {
+        if (lockCount(realm.getId(), user.getId(), currentCount) + additionalClients > limit) {
+            throw new ForbiddenException(String.format("You reached you maximum number of %d allowed self service clients!",
+                    limit));
+        }
+    }
+
+    /**
+     * Same as above for the clients owned by a group.
+     *
+     * @param currentCount used to initialize the counter, if the group has none yet
+     * @throws ForbiddenException if the group would exceed the limit
+     */
+    public void checkQuota(RealmModel realm, GroupModel group, int limit, int additionalClients, LongSupplier currentCount) {
+        if (lockCount(realm.getId(), OwnershipIndex.getGroupKey(group.getId()), currentCount) + additionalClients > limit) {
+            throw new ForbiddenException(String.format("Group %s reached its maximum number of %d allowed self service "
+                    + "clients!", group.getName(), limit));
+        }
+    }
+
+    // Applied for every change of the ownership index. Counters which do not exist yet are initialized on the next check.
+    public void adjust(String realmId, String ownerKey, int delta) {
+        em.createNamedQuery("sscAdjustClientCount")
+                .setParameter("id", getId(realmId, ownerKey))
+                .setParameter("delta", (long) delta)
+                .executeUpdate();
+    }
+
+    /**
+     * Sets an existing counter to the current number of clients of the owner, e.g. after the ownership index changed
+     * without adjusting the counter. The counter is locked like by checkQuota before counting, so creations in flight
+     * either are counted already or adjust the counter after this transaction.
+     *
+     * @param currentCount counts the clients, called while holding the lock
+     */
+    public void recount(String realmId, String ownerKey, LongSupplier currentCount) {
+        final UserQuotaEntity quota = em.find(UserQuotaEntity.class, getId(realmId, ownerKey), LockModeType.PESSIMISTIC_WRITE);
+        // missing counters are initialized on their next use
+        if (quota != null) {
+            quota.setClientCount(currentCount.getAsLong());
+        }
+    }
+
+    public void removeUser(String realmId, String userId) {
+        em.createNamedQuery("sscDeleteQuotaByUser")
+                .setParameter("realmId", realmId)
+                .setParameter("userId", userId)
+                .executeUpdate();
+    }
+
+    public void removeGroup(String realmId, String groupId) {
+        removeUser(realmId, OwnershipIndex.getGroupKey(groupId));
+    }
+
+    // Counters get initialized again on their next use
+    public void removeRealm(String realmId) {
+        em.createNamedQuery("sscDeleteQuotasByRealm").setParameter("realmId", realmId).executeUpdate();
+    }
+
+    private long lockCount(String realmId, String ownerKey, LongSupplier currentCount) {
+        final String id = getId(realmId, ownerKey);
+
+        UserQuotaEntity quota = em.find(UserQuotaEntity.class, id, LockModeType.PESSIMISTIC_WRITE);
+        if (quota == null) {
+            initialize(realmId, ownerKey, currentCount.getAsLong());
+            quota = em.find(UserQuotaEntity.class, id, LockModeType.PESSIMISTIC_WRITE);
+        }
+        return quota != null ? quota.getClientCount() : currentCount.getAsLong();
+    }
+
+    // The counter row is inserted in its own transaction. If another request is doing the same concurrently,
+    // only its transaction fails and ours can continue to lock the row.
+    private void initialize(String realmId, String ownerKey, long count) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), initSession -> {
+                final UserQuotaEntity quota = new UserQuotaEntity();
+                quota.setId(getId(realmId, ownerKey));
+                quota.setRealmId(realmId);
+                quota.setUserId(ownerKey);
+                quota.setClientCount(count);
+                initSession.getProvider(JpaConnectionProvider.class).getEntityManager().persist(quota);
+            });
+        } catch (RuntimeException exc) {
+            logger.debugf(exc, "Quota counter of %s in realm %s got initialized concurrently", ownerKey, realmId);
+        }
+    }
+
+    private static String getId(String realmId, String ownerKey) {
+        return UUID.nameUUIDFromBytes((realmId + "/" + ownerKey).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}
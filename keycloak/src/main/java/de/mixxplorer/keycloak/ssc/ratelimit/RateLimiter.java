@@ -0,0 +1,181 @@
+package de.mixxplorer.keycloak.ssc.ratelimit;
+
+import de.mixxplorer.keycloak.ssc.metrics.RequestMetrics;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.OAuthErrorException;
+import org.keycloak.representations.idm.OAuth2ErrorRepresentation;
+import org.keycloak.services.ErrorResponseException;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token buckets per user and per realm, separately for reads, writes and secret rotations.
+// A bucket is a single atomic timestamp updated via compare-and-set (generic cell rate algorithm, which behaves like a
+// token bucket), so concurrent requests neither lock nor contend on anything but their own bucket.
+// Buckets only live in the memory of a node. In a cluster, the effective limits are multiplied by the number of nodes
+// requests get balanced to.
+public class RateLimiter {
+    // read by the web frontend to schedule retries
+    public static final String RETRY_AFTER_MILLISECONDS_HEADER = "X-Rate-Limit-Retry-After-Milliseconds";
+
+    // full buckets are removed from time to time, as they are the same as no bucket
+    private static final int CLEANUP_THRESHOLD = 10000;
+    private static final long CLEANUP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Map<Kind, Limit> userLimits;
+    private final Map<Kind, Limit> realmLimits;
+    // value is the time the bucket is full again, as System.nanoTime
+    private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong lastCleanup = new AtomicLong(System.nanoTime());
+
+    // kinds without a limit are not limited
+    public RateLimiter(Map<Kind, Limit> userLimits, Map<Kind, Limit> realmLimits) {
+        this.userLimits = new EnumMap<>(Kind.class);
+        this.userLimits.putAll(userLimits);
+        this.realmLimits = new EnumMap<>(Kind.class);
+        this.realmLimits.putAll(realmLimits);
+    }
+
+    /**
+     * Takes tokens from the buckets of the user and the realm. If one of the buckets is empty, no tokens are taken.
+     *
+     * @param permits number of tokens, e.g. one per operation of a batch
+     * @throws ErrorResponseException with status 429 if one of the buckets is empty, or 400 if the request needs more
+     *                                tokens than a bucket can hold
+     */
+    public void acquire(RequestMetrics metrics, String realmId, String userId, Kind kind, int permits) {
+        if (permits > getMaxPermits(kind)) {
+            metrics.rejected("rate_limit");
+            throw new ErrorResponseException(OAuthErrorException.INVALID_REQUEST, String.format(
+                    "At most %d %s are allowed at once", getMaxPermits(kind), kind.getDescription()), Response.Status.BAD_REQUEST);
+        }
+        final long now = System.nanoTime();
+        cleanup(now);
+
+        final String userKey = realmId + "/" + userId + "/" + kind;
+        long waitNanos = tryAcquire(userKey, userLimits.get(kind), permits, now);
+        if (waitNanos == 0) {
+            waitNanos = tryAcquire(realmId + "/" + kind, realmLimits.get(kind), permits, now);
+            if (waitNanos > 0) {
+                // the request is rejected, so the user keeps its tokens
+                release(userKey, userLimits.get(kind), permits);
+            }
+        }
+        if (waitNanos > 0) {
+            metrics.rejected("rate_limit");
+            throw tooManyRequests(kind, waitNanos);
+        }
+    }
+
+    // Tokens a single request can take at most, as larger requests would never succeed
+    public int getMaxPermits(Kind kind) {
+        int max = Integer.MAX_VALUE;
+        for (Limit limit : new Limit[] {userLimits.get(kind), realmLimits.get(kind)}) {
+            if (limit != null) {
+                max = Math.min(max, limit.capacity());
+            }
+        }
+        return max;
+    }
+
+    // returns 0 if the tokens got taken, otherwise the time until enough tokens are available
+    private long tryAcquire(String key, Limit limit, int permits, long now) {
+        if (limit == null) {
+            return 0;
+        }
+        final AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        final long increment = limit.intervalNanos() * permits;
+        final long capacityNanos = limit.intervalNanos() * limit.capacity();
+        while (true) {
+            final long full = bucket.get();
+            final long newFull = (full - now > 0 ? full : now) + increment;
+            final long waitNanos = newFull - now - capacityNanos;
+            if (waitNanos > 0) {
+                return waitNanos;
+            } else if (bucket.compareAndSet(full, newFull)) {
+                return 0;
+            }
+        }
+    }
+
+    // gives back tokens taken by tryAcquire
+    private void release(String key, Limit limit, int permits) {
+        final AtomicLong bucket = limit != null ? buckets.get(key) : null;
+        if (bucket != null) {
+            bucket.addAndGet(-limit.intervalNanos() * permits);
+        }
+    }
+
+    private void cleanup(long now) {
+        final long last = lastCleanup.get();
+        if (buckets.size() > CLEANUP_THRESHOLD && now - last > CLEANUP_INTERVAL_NANOS && lastCleanup.compareAndSet(last, now)) {
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        }
+    }
+
+    private static ErrorResponseException tooManyRequests(Kind kind, long waitNanos) {
+        final long waitMillis = TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+        final OAuth2ErrorRepresentation error = new OAuth2ErrorRepresentation("too_many_requests",
+                String.format("Too many %s, please retry later", kind.getDescription()));
+        return new ErrorResponseException(Response.status(Response.Status.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, TimeUnit.MILLISECONDS.toSeconds(waitMillis + 999))
+                .header(RETRY_AFTER_MILLISECONDS_HEADER, waitMillis)
+                .entity(error)
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .build());
+    }
+
+    public enum Kind {
+        READ("Reads", "requests", 600),
+        WRITE("Writes", "changes", 60),
+        SECRET_ROTATION("SecretRotations", "secret rotations", 10);
+
+        // used for the option names, e.g. rateLimitWritesPerUser
+        private final String optionName;
+        private final String description;
+        private final int defaultPerUser;
+
+        Kind(String optionName, String description, int defaultPerUser) {
+            this.optionName = optionName;
+            this.description = description;
+            this.defaultPerUser = defaultPerUser;
+        }
+
+        public String getOptionName() {
+            return optionName;
+        }
+
+        // per minute, realms are not limited by default as their size differs too much
+        public int getDefaultPerUser() {
+            return defaultPerUser;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    // A bucket with the given capacity, which gets a new token every interval
+    public record Limit(long intervalNanos, int capacity) {
+        /**
+         * Creates the limit for a rate per minute.
+         *
+         * @param perMinute tokens per minute, 0 or less disables the limit
+         * @param burstSeconds the bucket holds the tokens of this many seconds
+         * @param minCapacity the bucket holds at least this many tokens, e.g. the operations of the largest batch
+         * @return the limit, null if disabled
+         */
+        public static Limit of(int perMinute, int burstSeconds, int minCapacity) {
+            if (perMinute <= 0) {
+                return null;
+            }
+            return new Limit(TimeUnit.MINUTES.toNanos(1) / perMinute, Math.max(Math.max(1, minCapacity),
+                    perMinute * burstSeconds / 60));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package de.mixxplorer.keycloak.ssc.realm;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.protocol.oidc.utils.WebOriginsUtils;
+import org.keycloak.services.cors.Cors;
+
+import java.util.Set;
+
+import static de.mixxplorer.keycloak.ssc.Constants.REALM_MAX_CLIENTS_PER_USER_ATTRIBUTE;
+import static de.mixxplorer.keycloak.ssc.Constants.SSC_CLIENT_ID;
+
+/**
+ * Self service configuration of a realm, as needed before authenticating a request.
+ *
+ * @param enabled whether the SSC_CLIENT_ID client exists, i.e. the API is activated on the realm
+ * @param sscClientUuid UUID of the SSC_CLIENT_ID client, null if not enabled
+ * @param maxClientsPerUser limit of the realm, or the default limit if the realm does not overwrite it
+ * @param allowedOrigins web origins of the SSC_CLIENT_ID client (with "+" resolved), used to answer CORS preflights
+ * @param loadedAt time in milliseconds this has been loaded from the model
+ */
+public record RealmActivation(String realmId, boolean enabled, String sscClientUuid, int maxClientsPerUser,
+                              Set<String> allowedOrigins, long loadedAt) {
+    private static final Logger logger = Logger.getLogger(RealmActivation.class);
+
+    public static RealmActivation load(KeycloakSession session, RealmModel realm, int defaultMaxClientsPerUser, long now) {
+        final ClientModel sscClient = session.clients().getClientByClientId(realm, SSC_CLIENT_ID);
+
+        return new RealmActivation(realm.getId(), sscClient != null, sscClient != null ? sscClient.getId() : null,
+                parseLimit(realm.getAttribute(REALM_MAX_CLIENTS_PER_USER_ATTRIBUTE), defaultMaxClientsPerUser),
+                sscClient != null ? Set.copyOf(WebOriginsUtils.resolveValidWebOrigins(session, sscClient)) : Set.of(), now);
+    }
+
+    public boolean isAllowedOrigin(String origin) {
+        return allowedOrigins.contains(origin) || allowedOrigins.contains(Cors.ACCESS_CONTROL_ALLOW_ORIGIN_WILDCARD);
+    }
+
+    public static int parseLimit(String value, int defaultLimit) {
+        if (value == null || value.isBlank()) {
+            return defaultLimit;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException exc) {
+            logger.warnf("Ignoring invalid self service clients limit '%s'", value);
+            return defaultLimit;
+        }
+    }
+}
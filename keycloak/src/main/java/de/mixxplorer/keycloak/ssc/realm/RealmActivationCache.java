@@ -0,0 +1,70 @@
+package de.mixxplorer.keycloak.ssc.realm;
+
+import org.keycloak.common.util.Time;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Caches the activation state per realm, so requests (including CORS preflights) do not need a model lookup before
+// authentication. Entries are invalidated via provider events (see SelfServiceProviderFactory). As provider events
+// are only fired on the node doing the change, entries additionally expire after a configurable time.
+public class RealmActivationCache {
+    private final Map<String, RealmActivation> activations = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final int defaultMaxClientsPerUser;
+
+    public RealmActivationCache(long ttlMillis, int defaultMaxClientsPerUser) {
+        this.ttlMillis = ttlMillis;
+        this.defaultMaxClientsPerUser = defaultMaxClientsPerUser;
+    }
+
+    public RealmActivation get(KeycloakSession session, RealmModel realm) {
+        final long now = Time.currentTimeMillis();
+        RealmActivation activation = activations.get(realm.getId());
+        if (activation == null || activation.loadedAt() + ttlMillis < now) {
+            activation = RealmActivation.load(session, realm, defaultMaxClientsPerUser, now);
+            activations.put(realm.getId(), activation);
+        }
+        return activation;
+    }
+
+    // returns the cached activation without loading it, null if not cached
+    public RealmActivation getIfPresent(String realmId) {
+        return activations.get(realmId);
+    }
+
+    /**
+     * Invalidates the cached activation of a realm.
+     * The entry is removed immediately and once more after the transaction of the session completed. Otherwise, a
+     * concurrent request might cache the state of the model before the change got committed.
+     *
+     * @param session session of the transaction doing the change, null if unknown
+     */
+    public void invalidate(String realmId, KeycloakSession session) {
+        activations.remove(realmId);
+        if (session != null) {
+            session.getTransactionManager().enlistAfterCompletion(new AfterCompletionInvalidation(realmId));
+        }
+    }
+
+    private class AfterCompletionInvalidation extends AbstractKeycloakTransaction {
+        private final String realmId;
+
+        AfterCompletionInvalidation(String realmId) {
+            this.realmId = realmId;
+        }
+
+        @Override
+        protected void commitImpl() {
+            activations.remove(realmId);
+        }
+
+        @Override
+        protected void rollbackImpl() {
+            activations.remove(realmId);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package de.mixxplorer.keycloak.ssc.realm;
+
+import org.jboss.logging.Logger;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// URLs self service clients of a realm may use, compiled from the rules of the realm attribute
+// REALM_URL_ALLOW_LIST_ATTRIBUTE. Rules are separated by whitespace or commas:
+// * https://app.example.com: exactly this host with this scheme, on any port
+// * https://*.example.com: all subdomains of example.com, at any depth
+// * *://app.example.com: this host with any scheme
+// * com.example.app: (a scheme followed by a colon): all URLs with this scheme, e.g. for redirects to native apps
+// Hosts are kept in a trie of their labels in reverse order (com -> example -> app), so checking a URL takes one lookup
+// per label of its host, independent of the number of rules.
+public class UrlAllowList {
+    public static final UrlAllowList ALLOW_ALL = new UrlAllowList(null);
+
+    private static final Logger logger = Logger.getLogger(UrlAllowList.class);
+    private static final String ANY_SCHEME = "*";
+
+    private final String source;
+    // schemes allowed regardless of the host
+    private final Set<String> schemes = new HashSet<>();
+    private final Node root = new Node();
+
+    private UrlAllowList(String source) {
+        this.source = source;
+    }
+
+    // Invalid rules are ignored, so a broken rule never allows more than intended
+    public static UrlAllowList compile(String source) {
+        final UrlAllowList allowList = new UrlAllowList(source);
+        for (String rule : source.split("[\\s,]+")) {
+            if (!rule.isEmpty() && !allowList.addRule(rule.toLowerCase(Locale.ROOT))) {
+                logger.warnf("Ignoring invalid self service clients URL rule '%s'", rule);
+            }
+        }
+        return allowList;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    private boolean addRule(String rule) {
+        final int separator = rule.indexOf("://");
+        if (separator < 0) {
+            if (rule.length() > 1 && rule.indexOf(':') == rule.length() - 1) {
+                schemes.add(rule.substring(0, rule.length() - 1));
+                return true;
+            }
+            return false;
+        }
+
+        final String scheme = rule.substring(0, separator);
+        String host = rule.substring(separator + 3);
+        final int path = host.indexOf('/');
+        if (path >= 0) {
+            host = host.substring(0, path);
+        }
+        final int port = host.lastIndexOf(':');
+        if (port >= 0 && !host.endsWith("]")) {
+            host = host.substring(0, port);
+        }
+        final boolean subdomains = host.startsWith("*.");
+        if (subdomains) {
+            host = host.substring(2);
+        }
+        host = stripTrailingDot(host);
+        if (scheme.isEmpty() || host.isEmpty() || host.contains("*")) {
+            return false;
+        }
+
+        Node node = root;
+        for (int end = host.length(); end > 0; ) {
+            final int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.computeIfAbsent(host.substring(dot + 1, end), label -> new Node());
+            end = dot;
+        }
+        (subdomains ? node.subdomainSchemes : node.hostSchemes).add(scheme);
+        return true;
+    }
+
+    /**
+     * Checks a URL against the rules of the realm.
+     * Relative URLs are allowed, as they resolve against the root URL (which is checked as well) or Keycloak itself.
+     * The same applies to "+", which stands for the redirect URIs of the client.
+     */
+    public boolean isAllowed(String url) {
+        if (source == null || url.equals("+") || (url.startsWith("/") && !url.startsWith("//"))) {
+            return true;
+        }
+
+        final URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException exc) {
+            return false;
+        }
+        if (uri.getScheme() == null) {
+            return false;
+        }
+        final String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        if (matches(schemes, scheme)) {
+            return true;
+        }
+        return uri.getHost() != null && isAllowedHost(scheme, stripTrailingDot(uri.getHost().toLowerCase(Locale.ROOT)));
+    }
+
+    private boolean isAllowedHost(String scheme, String host) {
+        Node node = root;
+        for (int end = host.length(); end > 0; ) {
+            final int dot = host.lastIndexOf('.', end - 1);
+            node = node.children.get(host.substring(dot + 1, end));
+            if (node == null) {
+                return false;
+            } else if (dot < 0) {
+                return matches(node.hostSchemes, scheme);
+            } else if (matches(node.subdomainSchemes, scheme)) {
+                return true;
+            }
+            end = dot;
+        }
+        return false;
+    }
+
+    private static boolean matches(Set<String> schemes, String scheme) {
+        return !schemes.isEmpty() && (schemes.contains(scheme) || schemes.contains(ANY_SCHEME));
+    }
+
+    private static String stripTrailingDot(String host) {
+        return host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+    }
+
+    // a label of a domain, with the schemes allowed for the domain itself and for its subdomains
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final Set<String> hostSchemes = new HashSet<>();
+        private final Set<String> subdomainSchemes = new HashSet<>();
+    }
+}
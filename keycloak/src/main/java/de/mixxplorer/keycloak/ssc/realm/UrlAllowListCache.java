@@ -0,0 +1,34 @@
+package de.mixxplorer.keycloak.ssc.realm;
+
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static de.mixxplorer.keycloak.ssc.Constants.REALM_URL_ALLOW_LIST_ATTRIBUTE;
+
+// Compiled URL allow lists per realm. A compiled list is reused as long as the realm attribute stays the same. The
+// attribute is read from the (cached) realm model on every check, so changes apply immediately on all cluster nodes
+// without any invalidation.
+public class UrlAllowListCache {
+    private final Map<String, UrlAllowList> allowLists = new ConcurrentHashMap<>();
+
+    // returns UrlAllowList.ALLOW_ALL if the realm does not restrict URLs
+    public UrlAllowList get(RealmModel realm) {
+        final String source = realm.getAttribute(REALM_URL_ALLOW_LIST_ATTRIBUTE);
+        if (source == null || source.isBlank()) {
+            allowLists.remove(realm.getId());
+            return UrlAllowList.ALLOW_ALL;
+        }
+        UrlAllowList allowList = allowLists.get(realm.getId());
+        if (allowList == null || !source.equals(allowList.getSource())) {
+            allowList = UrlAllowList.compile(source);
+            allowLists.put(realm.getId(), allowList);
+        }
+        return allowList;
+    }
+
+    public void invalidate(String realmId) {
+        allowLists.remove(realmId);
+    }
+}
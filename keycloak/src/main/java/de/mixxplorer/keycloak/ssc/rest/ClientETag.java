@@ -0,0 +1,135 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import de.mixxplorer.keycloak.ssc.Util;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsage;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsageStore;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.OAuthErrorException;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.services.ErrorResponseException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Strong entity tags for self service clients.
+// Tags are computed from the exposed values of the client model, so checking them does not require building (and
+// serializing) representations. Changes done via the admin console are covered as well.
+public class ClientETag {
+    private ClientETag() {}
+
+    public static EntityTag of(ClientModel client, KeycloakSession session, Set<String> fields) {
+        final MessageDigest digest = newDigest();
+        update(digest, client.getId());
+        update(digest, client.getClientId());
+        update(digest, client.getName());
+        update(digest, client.getDescription());
+        update(digest, client.getRootUrl());
+        update(digest, client.getBaseUrl());
+        update(digest, client.isEnabled());
+        update(digest, client.getRedirectUris());
+        update(digest, client.getWebOrigins());
+        update(digest, client.isPublicClient());
+        update(digest, client.isBearerOnly());
+        update(digest, client.isFrontchannelLogout());
+        update(digest, client.getAttribute("backchannel.logout.revoke.offline.tokens"));
+        update(digest, client.getAttribute("backchannel.logout.session.required"));
+        update(digest, client.getAttribute("backchannel.logout.url"));
+        update(digest, client.getAttribute("frontchannel.logout.url"));
+        update(digest, client.getAttribute("post.logout.redirect.uris"));
+        update(digest, client.getSecret());
+        update(digest, client.isStandardFlowEnabled());
+        update(digest, client.isImplicitFlowEnabled());
+        update(digest, client.isDirectAccessGrantsEnabled());
+        update(digest, client.isServiceAccountsEnabled());
+        update(digest, Util.getClientOwnerGroupIds(client));
+        // requires another lookup, therefore only done if the representation contains it anyway
+        if (fields.contains("authorizationServicesEnabled")) {
+            update(digest, SelfServiceClientRepresentation.isAuthorizationServicesEnabled(client, session));
+        }
+        // only if selected, so tags of the default representation do not change with every login
+        if (fields.contains("lastUsed") || fields.contains("loginsLast30Days")) {
+            final ClientUsage usage = ClientUsageStore.get(session, client, Time.currentTimeMillis());
+            update(digest, usage.lastUsed());
+            update(digest, usage.logins());
+        }
+        return toTag(digest);
+    }
+
+    // tag of a (paged) list, changes whenever one of the clients or the total number of clients changes
+    public static EntityTag ofList(List<EntityTag> clientTags, long total) {
+        final MessageDigest digest = newDigest();
+        update(digest, total);
+        clientTags.forEach(tag -> update(digest, tag.getValue()));
+        return toTag(digest);
+    }
+
+    // see RFC 9110, section 13.1.2: If-None-Match uses the weak comparison
+    public static boolean isNotModified(HttpHeaders headers, EntityTag current) {
+        final List<String> ifNoneMatch = headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH);
+        return ifNoneMatch != null && ifNoneMatch.stream().anyMatch(header -> matches(header, current, true));
+    }
+
+    /**
+     * Checks the If-Match header of a request, if given.
+     *
+     * @throws ErrorResponseException if the client has been modified in the meantime
+     */
+    public static void checkIfMatch(HttpHeaders headers, EntityTag current) {
+        checkIfMatch(headers.getRequestHeader(HttpHeaders.IF_MATCH), current);
+    }
+
+    public static void checkIfMatch(List<String> ifMatch, EntityTag current) {
+        if (ifMatch != null && !ifMatch.isEmpty() && ifMatch.stream().noneMatch(header -> matches(header, current, false))) {
+            throw new ErrorResponseException(OAuthErrorException.INVALID_REQUEST,
+                    "Client has been modified in the meantime", Response.Status.PRECONDITION_FAILED);
+        }
+    }
+
+    private static boolean matches(String header, EntityTag current, boolean weakComparison) {
+        final String quoted = "\"" + current.getValue() + "\"";
+        return Arrays.stream(header.split(",")).map(String::trim).anyMatch(tag -> {
+            if (tag.equals("*")) {
+                return true;
+            } else if (tag.startsWith("W/")) {
+                return weakComparison && tag.substring(2).equals(quoted);
+            }
+            return tag.equals(quoted);
+        });
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    private static void update(MessageDigest digest, Object value) {
+        // separate values, so e.g. ("ab", "c") and ("a", "bc") result in different tags
+        if (value instanceof Collection<?> collection) {
+            // order of sets is not stable
+            new TreeSet<>(collection.stream().map(String::valueOf).toList()).forEach(element -> update(digest, element));
+            digest.update((byte) 1);
+        } else if (value != null) {
+            digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    private static EntityTag toTag(MessageDigest digest) {
+        return new EntityTag(Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 18)));
+    }
+}
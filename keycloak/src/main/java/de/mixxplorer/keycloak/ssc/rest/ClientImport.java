@@ -0,0 +1,238 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectReader;
+import de.mixxplorer.keycloak.ssc.metrics.RequestMetrics;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import de.mixxplorer.keycloak.ssc.quota.ClientQuota;
+import de.mixxplorer.keycloak.ssc.ratelimit.RateLimiter;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceBatchResult;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientWritableRepresentation;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import org.jboss.logging.Logger;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.fgap.AdminPermissions;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.mixxplorer.keycloak.ssc.Util.getUserManageClientAttributeName;
+
+// Creates clients from newline delimited JSON, as written by the export. The body is read and parsed completely before
+// anything is written, so the response neither depends on full-duplex HTTP nor is committed before the import finished.
+// The clients are then created in chunks, each in its own transaction, so no large transaction is held.
+// Every client runs through the same checks as a single create (quota, client ID prefix, allowed URLs, client policies
+// and validation).
+// Failures before anything has been written only skip the client. Failures after writing roll back the whole chunk,
+// whose other clients are then reported as rolled back.
+public class ClientImport {
+    // RFC 4918, not part of Response.Status
+    private static final int FAILED_DEPENDENCY = 424;
+
+    // all clients are held in memory while importing
+    private static final int MAX_CLIENTS = 1000;
+
+    private static final Logger logger = Logger.getLogger(ClientImport.class);
+    // exports contain read-only fields like the id, which are ignored
+    private static final ObjectReader READER = JsonSerialization.mapper.readerFor(SelfServiceClientWritableRepresentation.class)
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private final KeycloakSession session;
+    private final AuthenticationManager.AuthResult auth;
+    private final SelfServiceProviderFactory factory;
+    private final int chunkSize;
+
+    public ClientImport(KeycloakSession session, AuthenticationManager.AuthResult auth, SelfServiceProviderFactory factory,
+                        int chunkSize) {
+        this.session = session;
+        this.auth = auth;
+        this.factory = factory;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Creates the clients of the body, which is read and parsed completely before the first client is created.
+     *
+     * @return one result per non-empty line, in the order of the body; lines after the rate limit has been reached are
+     *         left out
+     * @throws BadRequestException if the body cannot be read or contains too many clients
+     */
+    public List<SelfServiceBatchResult.Item> run(InputStream body) {
+        final List<SelfServiceClientWritableRepresentation> clients = new ArrayList<>();
+        final List<SelfServiceBatchResult.Item> results = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (clients.size() == MAX_CLIENTS) {
+                    throw new BadRequestException(String.format("At most %d clients can be imported at once", MAX_CLIENTS));
+                }
+                parse(clients.size(), line, clients, results);
+            }
+        } catch (IOException exc) {
+            throw new BadRequestException("Could not read the clients to import", exc);
+        }
+
+        for (int start = 0; start < clients.size(); start += chunkSize) {
+            final int end = Math.min(start + chunkSize, clients.size());
+            if (!importChunk(start, clients.subList(start, end), results.subList(start, end))) {
+                // the results show which lines have been processed
+                return results.subList(0, end);
+            }
+        }
+        return results;
+    }
+
+    // Adds the parsed client, or null and an error result if the line is invalid
+    private static void parse(int index, String line, List<SelfServiceClientWritableRepresentation> clients,
+                              List<SelfServiceBatchResult.Item> results) {
+        SelfServiceClientWritableRepresentation client = null;
+        String error;
+        try {
+            client = READER.readValue(line);
+            error = client == null ? "Expected a client object" : null;
+        } catch (JsonProcessingException exc) {
+            error = exc.getOriginalMessage();
+        }
+        clients.add(error == null ? client : null);
+        if (error == null) {
+            results.add(null);
+        } else {
+            final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(index, "create",
+                    Response.Status.BAD_REQUEST.getStatusCode());
+            result.error = "invalid_json";
+            result.errorDescription = error;
+            results.add(result);
+        }
+    }
+
+    // Fills the results of the chunk, returns false if the import has to stop, e.g. because of the rate limit
+    private boolean importChunk(int firstIndex, List<SelfServiceClientWritableRepresentation> clients,
+                                List<SelfServiceBatchResult.Item> results) {
+        // the request itself took one token already
+        final int permits = firstIndex == 0 ? clients.size() - 1 : clients.size();
+        try {
+            if (permits > 0) {
+                factory.getRateLimiter().acquire(RequestMetrics.get(session), session.getContext().getRealm().getId(),
+                        auth.getUser().getId(), RateLimiter.Kind.WRITE, permits);
+            }
+        } catch (WebApplicationException exc) {
+            for (int i = 0; i < clients.size(); i++) {
+                results.set(i, SelfServiceResources.toBatchError(firstIndex + i, "create", exc));
+            }
+            return false;
+        }
+
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), session.getContext(),
+                    chunkSession -> createClients(chunkSession, firstIndex, clients, results));
+        } catch (RuntimeException exc) {
+            logger.warnf(exc, "Could not commit chunk of imported self service clients starting at %d", firstIndex);
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i) == null || results.get(i).error == null) {
+                    final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(firstIndex + i, "create",
+                            Response.Status.INTERNAL_SERVER_ERROR.getStatusCode());
+                    result.error = "commit_failed";
+                    results.set(i, result);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // Fills the results of all clients, which have not failed while parsing
+    private void createClients(KeycloakSession chunkSession, int firstIndex, List<SelfServiceClientWritableRepresentation> clients,
+                               List<SelfServiceBatchResult.Item> results) {
+        chunkSession.setAttribute(RequestMetrics.class.getName(), RequestMetrics.get(session));
+        final RealmModel realm = chunkSession.getContext().getRealm();
+        final UserModel user = chunkSession.users().getUserById(realm, auth.getUser().getId());
+        if (user == null) {
+            throw new ForbiddenException("User not found");
+        }
+        final ClientModel authClient = auth.getClient() != null ? realm.getClientById(auth.getClient().getId()) : null;
+        final AuthenticationManager.AuthResult chunkAuth = new AuthenticationManager.AuthResult(user, null, auth.getToken(),
+                authClient);
+        final AdminPermissionEvaluator adminAuth = AdminPermissions.evaluator(chunkSession, realm,
+                new AdminAuth(realm, auth.getToken(), user, authClient));
+        final SelfServiceClientOperations operations = new SelfServiceClientOperations(chunkSession, realm, chunkAuth, adminAuth,
+                factory);
+        operations.deferAdminEvents();
+
+        for (int i = 0; i < clients.size(); i++) {
+            if (clients.get(i) == null) {
+                continue;
+            }
+            if (chunkSession.getTransactionManager().getRollbackOnly()) {
+                final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(firstIndex + i, "create",
+                        FAILED_DEPENDENCY);
+                result.error = "not_executed";
+                results.set(i, result);
+                continue;
+            }
+            try {
+                operations.checkCreate(clients.get(i));
+                checkQuota(chunkSession, realm, user);
+                final ClientModel clientModel = operations.create(clients.get(i));
+                final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(firstIndex + i, "create",
+                        Response.Status.CREATED.getStatusCode());
+                result.id = clientModel.getId();
+                result.etag = ClientETag.of(clientModel, chunkSession, SelfServiceClientRepresentation.FIELDS).getValue();
+                result.client = new SelfServiceClientRepresentation(clientModel, chunkSession);
+                results.set(i, result);
+            } catch (WebApplicationException exc) {
+                results.set(i, SelfServiceResources.toBatchError(firstIndex + i, "create", exc));
+            }
+        }
+
+        if (!chunkSession.getTransactionManager().getRollbackOnly()) {
+            operations.sendAdminEvents();
+        } else {
+            for (SelfServiceBatchResult.Item result : results) {
+                if (result.error == null) {
+                    result.status = FAILED_DEPENDENCY;
+                    result.error = "rolled_back";
+                    result.id = null;
+                    result.etag = null;
+                    result.client = null;
+                }
+            }
+        }
+    }
+
+    // The counter stays locked until the chunk is committed, as for single creates
+    private void checkQuota(KeycloakSession chunkSession, RealmModel realm, UserModel user) {
+        try {
+            RequestMetrics.get(chunkSession).time("quota", () -> {
+                final int limit = ClientQuota.getLimit(factory.getRealmActivation(chunkSession, realm), user);
+                new ClientQuota(chunkSession).checkQuota(realm, user, limit, 1, () -> factory.isOwnershipIndexReady()
+                        ? new OwnershipIndex(chunkSession).countClients(realm, user.getId())
+                        : SelfServiceResources.searchClientsByOwnerAttribute(chunkSession, realm,
+                                getUserManageClientAttributeName(user)).count());
+            });
+        } catch (ForbiddenException exc) {
+            RequestMetrics.get(chunkSession).rejected("quota");
+            throw exc;
+        }
+    }
+}
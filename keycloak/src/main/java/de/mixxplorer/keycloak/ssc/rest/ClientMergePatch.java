@@ -0,0 +1,115 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientWritableRepresentation;
+import jakarta.ws.rs.BadRequestException;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.util.JsonSerialization;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// JSON merge patches (RFC 7396) of self service clients. As the writable representation is a flat object, a patch
+// replaces or removes top level fields only, lists are replaced as a whole.
+// Removed strings and lists are cleared, as they have no default. Fields without a sensible empty value cannot be removed.
+final class ClientMergePatch {
+    static final String MEDIA_TYPE = "application/merge-patch+json";
+
+    private static final Set<String> REQUIRED_FIELDS = Set.of("clientId", "enabled", "publicClient", "frontchannelLogout",
+            "backchannelLogoutRevokeOfflineTokens", "backchannelLogoutSessionRequired");
+    private static final Set<String> LIST_FIELDS = Set.of("redirectUris", "webOrigins", "postLogoutRedirectUris",
+            "ownerGroups");
+
+    private ClientMergePatch() {
+    }
+
+    /**
+     * Applies a patch to the current values of a client.
+     *
+     * @param current writable fields of the client
+     * @return patched values, which still have to be validated
+     * @throws BadRequestException if the patch is no object, or changes fields which cannot be changed
+     */
+    static SelfServiceClientWritableRepresentation apply(SelfServiceClientRepresentation current, JsonNode patch) {
+        if (patch == null || !patch.isObject()) {
+            throw new BadRequestException("Expected a JSON merge patch object");
+        }
+
+        final ObjectNode target = JsonSerialization.mapper.valueToTree(current);
+        target.remove("id");
+        for (Map.Entry<String, JsonNode> field : patch.properties()) {
+            final String name = field.getKey();
+            if (!SelfServiceClientRepresentation.WRITABLE_FIELDS.contains(name)) {
+                throw new BadRequestException(String.format("Field %s cannot be changed", name));
+            }
+            if (!field.getValue().isNull()) {
+                target.set(name, field.getValue());
+            } else if (REQUIRED_FIELDS.contains(name)) {
+                throw new BadRequestException(String.format("Field %s cannot be removed", name));
+            } else if (LIST_FIELDS.contains(name)) {
+                target.putArray(name);
+            } else {
+                target.put(name, "");
+            }
+        }
+
+        try {
+            return JsonSerialization.mapper.treeToValue(target, SelfServiceClientWritableRepresentation.class);
+        } catch (JsonProcessingException exc) {
+            throw new BadRequestException("Invalid merge patch: " + exc.getOriginalMessage());
+        }
+    }
+
+    /**
+     * Compares two representations of the same client.
+     *
+     * @return representation containing only the changed fields and attributes, null if nothing changed
+     */
+    static ClientRepresentation diff(ClientRepresentation before, ClientRepresentation after) {
+        final ClientRepresentation changes = new ClientRepresentation();
+        boolean changed = changed(before.getName(), after.getName(), changes::setName);
+        changed |= changed(before.getDescription(), after.getDescription(), changes::setDescription);
+        changed |= changed(before.getRootUrl(), after.getRootUrl(), changes::setRootUrl);
+        changed |= changed(before.getBaseUrl(), after.getBaseUrl(), changes::setBaseUrl);
+        changed |= changed(before.isEnabled(), after.isEnabled(), changes::setEnabled);
+        changed |= changed(before.getRedirectUris(), after.getRedirectUris(), changes::setRedirectUris);
+        changed |= changed(before.getWebOrigins(), after.getWebOrigins(), changes::setWebOrigins);
+        changed |= changed(before.isPublicClient(), after.isPublicClient(), changes::setPublicClient);
+        changed |= changed(before.isFrontchannelLogout(), after.isFrontchannelLogout(), changes::setFrontchannelLogout);
+
+        final Map<String, String> attributes = new HashMap<>();
+        for (Map.Entry<String, String> attribute : after.getAttributes().entrySet()) {
+            changed |= changed(before.getAttributes().get(attribute.getKey()), attribute.getValue(),
+                    value -> attributes.put(attribute.getKey(), value));
+        }
+        changes.setAttributes(attributes);
+        return changed ? changes : null;
+    }
+
+    // Sets the value if it changed. Empty strings equal null, as do empty lists, which are compared as sets.
+    private static <T> boolean changed(T before, T after, Consumer<T> setter) {
+        if (Objects.equals(normalize(before), normalize(after))) {
+            return false;
+        }
+        setter.accept(after);
+        return true;
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof String string) {
+            return string.isEmpty() ? null : string;
+        }
+        if (value instanceof Collection<?> values) {
+            return values.isEmpty() ? null : new HashSet<>(values);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,145 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
+import jakarta.ws.rs.core.EntityTag;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.util.JsonSerialization;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Serialized representations of self service clients, so repeated reads of an unchanged client are written as bytes
+// without building and serializing the representation again.
+// Entries are keyed by the client UUID and its entity tag, which is computed from the client model for conditional
+// requests anyway. As Keycloak invalidates cached client models on all cluster nodes, a changed client gets a new tag
+// on every node and outdated entries are never served, without any invalidation messages between the nodes.
+// Entries of changed clients are additionally dropped on provider events, so they do not take up space until evicted.
+// The cache holds the least recently used clients up to a configurable number. Reads do not take a lock, they only
+// note the time of the access. Once the cache is full, the entries accessed longest ago are evicted in batches, which
+// approximates the LRU order without a shared access order.
+public class ClientRepresentationCache {
+    // field selections per client, e.g. the list and the detail view of the GUI
+    private static final int MAX_VARIANTS = 4;
+    private static final String ALL_FIELDS = "*";
+    // share of the entries evicted at once, so not every insert into a full cache scans all entries
+    private static final int EVICTION_DIVISOR = 10;
+
+    private final int maxEntries;
+    private final Map<String, Entry> representations = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private record Variant(String fields, String tag, SerializableString json) {}
+
+    private static final class Entry {
+        private final List<Variant> variants;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Entry(List<Variant> variants) {
+            this.variants = variants;
+        }
+    }
+
+    private record Access(String clientUuid, Entry entry, long lastAccess) {}
+
+    public ClientRepresentationCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    // key of a field selection, computed once per request
+    public static String getFieldsKey(Set<String> fields) {
+        return fields.equals(SelfServiceClientRepresentation.FIELDS) ? ALL_FIELDS : String.join(",", new TreeSet<>(fields));
+    }
+
+    /**
+     * Returns the serialized representation of a client, building it if it is not cached.
+     *
+     * @param tag entity tag of the client with the selected fields
+     * @param fieldsKey see getFieldsKey
+     * @return JSON, which can be written as raw value
+     */
+    public SerializableString get(ClientModel client, EntityTag tag, KeycloakSession session, Set<String> fields,
+                                  String fieldsKey) {
+        if (maxEntries <= 0) {
+            return serialize(SelfServiceClientRepresentation.of(client, session, fields));
+        }
+
+        final Entry entry = representations.get(client.getId());
+        if (entry != null) {
+            for (Variant variant : entry.variants) {
+                if (variant.fields().equals(fieldsKey) && variant.tag().equals(tag.getValue())) {
+                    entry.lastAccess = System.nanoTime();
+                    return variant.json();
+                }
+            }
+        }
+
+        // built outside of the map, concurrent misses of the same client build it twice
+        final SerializableString json = serialize(SelfServiceClientRepresentation.of(client, session, fields));
+        final Variant added = new Variant(fieldsKey, tag.getValue(), json);
+        representations.compute(client.getId(), (clientUuid, current) -> {
+            final List<Variant> variants = new ArrayList<>(MAX_VARIANTS);
+            variants.add(added);
+            // other versions of the same selection are outdated
+            if (current != null) {
+                current.variants.stream()
+                        .filter(variant -> !variant.fields().equals(fieldsKey))
+                        .limit(MAX_VARIANTS - 1)
+                        .forEach(variants::add);
+            }
+            return new Entry(List.copyOf(variants));
+        });
+        if (representations.size() > maxEntries) {
+            evict();
+        }
+        return json;
+    }
+
+    public void invalidate(String clientUuid) {
+        if (maxEntries > 0) {
+            representations.remove(clientUuid);
+        }
+    }
+
+    // Evicts the entries accessed longest ago. Threads finding another one evicting do not wait, the cache may exceed
+    // its size for that time.
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            final int excess = representations.size() - maxEntries;
+            if (excess <= 0) {
+                return;
+            }
+            // the access times are copied, as they change while sorting
+            representations.entrySet().stream()
+                    .map(entry -> new Access(entry.getKey(), entry.getValue(), entry.getValue().lastAccess))
+                    .sorted(Comparator.comparingLong(Access::lastAccess))
+                    .limit(Math.max(excess, maxEntries / EVICTION_DIVISOR))
+                    .forEach(access -> representations.remove(access.clientUuid(), access.entry()));
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static SerializableString serialize(SelfServiceClientRepresentation representation) {
+        try {
+            final SerializedString json = new SerializedString(JsonSerialization.mapper.writeValueAsString(representation));
+            // encoded once, later writes copy the bytes
+            json.asUnquotedUTF8();
+            return json;
+        } catch (JsonProcessingException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+}
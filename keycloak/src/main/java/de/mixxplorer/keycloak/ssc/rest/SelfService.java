@@ -5,14 +5,16 @@ import org.keycloak.services.resource.RealmResourceProvider;
 
 public class SelfService implements RealmResourceProvider {
     private final KeycloakSession keycloakSession;
+    private final SelfServiceProviderFactory factory;
 
-    public SelfService(KeycloakSession keycloakSession) {
+    public SelfService(KeycloakSession keycloakSession, SelfServiceProviderFactory factory) {
         this.keycloakSession = keycloakSession;
+        this.factory = factory;
     }
 
     @Override
     public Object getResource() {
-        return new SelfServiceMainResource(this.keycloakSession);
+        return new SelfServiceMainResource(this.keycloakSession, this.factory);
     }
 
     @Override
@@ -0,0 +1,68 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import de.mixxplorer.keycloak.ssc.metrics.RequestMetrics;
+import de.mixxplorer.keycloak.ssc.orphans.OrphanSweepStatus;
+import de.mixxplorer.keycloak.ssc.orphans.OrphanedClients;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipReport;
+import de.mixxplorer.keycloak.ssc.rotation.SecretRotationStatus;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+// Realm-wide views on all self service clients, only available to users with the SSC_ADMIN_CLIENT_ROLE
+public class SelfServiceAdminResources {
+    private static final int REPORT_CHUNK_SIZE = 500;
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final SelfServiceProviderFactory factory;
+
+    public SelfServiceAdminResources(KeycloakSession keycloakSession, SelfServiceProviderFactory factory) {
+        this.session = keycloakSession;
+        this.realm = keycloakSession.getContext().getRealm();
+        this.factory = factory;
+    }
+
+    // Streams all self service clients of the realm with their owners, one JSON object per line
+    @GET
+    @Path("clients")
+    @Produces(StreamingJson.NDJSON)
+    public Response getOwnershipReport() {
+        return RequestMetrics.get(session).endpoint("report", () -> {
+            return Response.ok(StreamingJson.ndjson(new OwnershipReport(session, REPORT_CHUNK_SIZE).stream(realm))).build();
+        });
+    }
+
+    // Progress of the current or last secret rotation run on this node
+    @GET
+    @Path("secret-rotation")
+    @Produces(MediaType.APPLICATION_JSON)
+    public SecretRotationStatus.Realm getSecretRotationStatus() {
+        return RequestMetrics.get(session).endpoint("secretRotationStatus", () -> {
+            final SecretRotationStatus status = factory.getSecretRotationStatus();
+            if (status == null) {
+                throw new NotFoundException("Secret rotation is not enabled");
+            }
+            return status.getRealm(realm.getId());
+        });
+    }
+
+    // Counters of the orphan sweeper on this node, and the clients of the realm currently queued
+    @GET
+    @Path("orphans")
+    @Produces(MediaType.APPLICATION_JSON)
+    public OrphanSweepStatus.Realm getOrphanSweepStatus() {
+        return RequestMetrics.get(session).endpoint("orphanSweepStatus", () -> {
+            final OrphanSweepStatus status = factory.getOrphanSweepStatus();
+            if (status == null) {
+                throw new NotFoundException("Orphan sweeping is not enabled");
+            }
+            return status.getRealm(realm.getId(), new OrphanedClients(session).countQueued(realm));
+        });
+    }
+}
@@ -0,0 +1,367 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import de.mixxplorer.keycloak.ssc.changes.ClientChangeLog;
+import de.mixxplorer.keycloak.ssc.metrics.RequestMetrics;
+import de.mixxplorer.keycloak.ssc.ownership.ClientOwners;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import de.mixxplorer.keycloak.ssc.quota.ClientQuota;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientWritableRepresentation;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.ForbiddenException;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.OAuthErrorException;
+import org.keycloak.events.Errors;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSecretConstants;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ModelDuplicateException;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.RepresentationToModel;
+import org.keycloak.representations.idm.ClientRepresentation;
+import org.keycloak.services.ErrorResponse;
+import org.keycloak.services.ErrorResponseException;
+import org.keycloak.services.clientpolicy.ClientPolicyException;
+import org.keycloak.services.clientpolicy.context.AdminClientRegisterContext;
+import org.keycloak.services.clientpolicy.context.AdminClientRegisteredContext;
+import org.keycloak.services.clientpolicy.context.AdminClientUnregisterContext;
+import org.keycloak.services.clientpolicy.context.AdminClientUpdateContext;
+import org.keycloak.services.clientpolicy.context.AdminClientUpdatedContext;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.managers.ClientManager;
+import org.keycloak.services.managers.RealmManager;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.AdminRoot;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+import org.keycloak.validation.ValidationUtil;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+import static de.mixxplorer.keycloak.ssc.Util.getClientOwnerGroupIds;
+import static de.mixxplorer.keycloak.ssc.Util.getGroupManageClientAttributeName;
+import static de.mixxplorer.keycloak.ssc.Util.getUserManageClientAttributeMap;
+
+// Write operations on self service clients, shared by the single client endpoints and the batch endpoint.
+// Callers are responsible for checking the quota of the user and the access to existing clients. The quotas of owner
+// groups are checked here, as only the operations know which groups get added.
+// Failures happening before anything has been written leave the transaction untouched. Failures after a write mark
+// the transaction as rollback only, so the batch endpoint knows it cannot continue.
+public class SelfServiceClientOperations {
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AuthenticationManager.AuthResult auth;
+    private final AdminPermissionEvaluator adminAuth;
+    private final SelfServiceProviderFactory factory;
+    private final RequestMetrics metrics;
+    // admin events held back until sendAdminEvents, null if they are sent right away
+    private List<AdminEventBuilder> deferredAdminEvents;
+
+    public SelfServiceClientOperations(KeycloakSession session, RealmModel realm, AuthenticationManager.AuthResult auth,
+                                       AdminPermissionEvaluator adminAuth, SelfServiceProviderFactory factory) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminAuth = adminAuth;
+        this.factory = factory;
+        this.metrics = RequestMetrics.get(session);
+    }
+
+    // Holds back the admin events until sendAdminEvents, so operations rolled back with their batch do not reach the
+    // event listeners. The events are sent in the order of the operations, as if the single client endpoints were used.
+    public void deferAdminEvents() {
+        deferredAdminEvents = new ArrayList<>();
+    }
+
+    public void sendAdminEvents() {
+        if (deferredAdminEvents == null || deferredAdminEvents.isEmpty()) {
+            return;
+        }
+        metrics.time("adminEvent", () -> deferredAdminEvents.forEach(AdminEventBuilder::success));
+        deferredAdminEvents.clear();
+    }
+
+    /**
+     * Rejects invalid clients to be created, before anything is written. Callers locking the quota of the user call it
+     * before, so invalid requests do not take the lock. It is cheap enough to be run again by create.
+     *
+     * @throws WebApplicationException if the client is invalid or its client ID is taken
+     */
+    public void checkCreate(SelfServiceClientWritableRepresentation clientWritableRep) {
+        if (clientWritableRep == null) {
+            throw new BadRequestException("Expected a client object");
+        }
+        metrics.time("validateRepresentation", () -> clientWritableRep.validate(factory.getUrlAllowList(realm)));
+
+        // read-only check, so a duplicate does not break the transaction
+        if (realm.getClientByClientId(clientWritableRep.clientId) != null) {
+            throw ErrorResponse.exists("Client " + clientWritableRep.clientId + " already exists");
+        }
+    }
+
+    // based on org.keycloak.services.resources.admin (org/keycloak/services/resources/admin/ClientsResource.java)
+    public ClientModel create(SelfServiceClientWritableRepresentation clientWritableRep) {
+        checkCreate(clientWritableRep);
+        ClientRepresentation rep = clientWritableRep.toClientRepresentation();
+
+        // add permission flag for creating user
+        final Map<String, String> authClientAttributes = getUserManageClientAttributeMap(auth.getUser());
+        final var currentAttributes = rep.getAttributes();
+        currentAttributes.putAll(authClientAttributes);
+
+        // the creating user stays owner, groups are additional owners
+        if (clientWritableRep.ownerGroups != null) {
+            for (String groupId : checkAddedOwnerGroups(clientWritableRep.ownerGroups, Set.of())) {
+                currentAttributes.put(getGroupManageClientAttributeName(groupId), CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE);
+            }
+        }
+        rep.setAttributes(currentAttributes);
+
+        boolean written = false;
+        try {
+            metrics.time("clientPolicy", () -> session.clientPolicy()
+                    .triggerOnEvent(new AdminClientRegisterContext(rep, adminAuth.adminAuth())));
+
+            // persist new client
+            written = true;
+            final ClientModel clientModel = metrics.time("createClient", () -> {
+                final ClientModel created = ClientManager.createClient(session, realm, rep);
+                new OwnershipIndex(session).reindexClient(created);
+                new ClientChangeLog(session).recordChange(created);
+                factory.getClientSearchIndex().update(session, created);
+                return created;
+            });
+
+            // we do not allow enabling service accounts
+
+            // we do not allow enabling authorization services
+
+            validate(clientModel, true);
+
+            sendAdminEvent(newAdminEvent().operation(OperationType.CREATE).resourcePath(getResourcePath(clientModel)).representation(rep));
+
+            // used for e.g. logging
+            session.getContext().setClient(clientModel);
+            metrics.time("clientPolicy", () -> session.clientPolicy()
+                    .triggerOnEvent(new AdminClientRegisteredContext(clientModel, adminAuth.adminAuth())));
+
+            return clientModel;
+        } catch (ModelDuplicateException e) {
+            session.getTransactionManager().setRollbackOnly();
+            throw ErrorResponse.exists("Client " + rep.getClientId() + " already exists");
+        } catch (ClientPolicyException cpe) {
+            metrics.rejected("policy");
+            if (written) {
+                session.getTransactionManager().setRollbackOnly();
+            }
+            throw new ErrorResponseException(cpe.getError(), cpe.getErrorDetail(), Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public void update(ClientModel clientModel, SelfServiceClientWritableRepresentation clientWritableRep) {
+        if (clientWritableRep == null) {
+            throw new BadRequestException("Expected a client object");
+        }
+        metrics.time("validateRepresentation", () -> clientWritableRep.validate(factory.getUrlAllowList(realm)));
+        checkClientId(clientModel, clientWritableRep.clientId);
+
+        write(clientModel, clientWritableRep.toClientRepresentation(), clientWritableRep.ownerGroups);
+    }
+
+    /**
+     * Applies a JSON merge patch (RFC 7396) of the writable fields to a client. Only the changed fields are written,
+     * the admin event contains only these as well.
+     *
+     * @return whether the client changed. If not, nothing is written and no event is sent.
+     */
+    public boolean patch(ClientModel clientModel, JsonNode patch) {
+        final SelfServiceClientRepresentation current = SelfServiceClientRepresentation.of(clientModel, session,
+                SelfServiceClientRepresentation.WRITABLE_FIELDS);
+        final SelfServiceClientWritableRepresentation patched = ClientMergePatch.apply(current, patch);
+        metrics.time("validateRepresentation", () -> patched.validate(factory.getUrlAllowList(realm)));
+        checkClientId(clientModel, patched.clientId);
+
+        final ClientRepresentation changes = ClientMergePatch.diff(current.toClientRepresentation(),
+                patched.toClientRepresentation());
+        final List<String> ownerGroups = new HashSet<>(current.ownerGroups).equals(new HashSet<>(patched.ownerGroups))
+                ? null : patched.ownerGroups;
+        if (changes == null && ownerGroups == null) {
+            return false;
+        }
+
+        final ClientRepresentation rep = changes != null ? changes : new ClientRepresentation();
+        rep.setClientId(clientModel.getClientId());
+        write(clientModel, rep, ownerGroups);
+        return true;
+    }
+
+    private void checkClientId(ClientModel clientModel, String clientId) {
+        if (clientId != null && !clientId.equals(clientModel.getClientId())) {
+            // users are not allowed to change the client ID.
+            // Imaging the following case:
+            // * user creates a client
+            // * admin manually enables a specific functionality
+            // * user renames the client
+            // * user tricks the admin to enable another specific functionality for a now "new" client (from admin side)
+            // * client might have way too many rights, causing confusion for the admins
+            // Therefore: We do not allow changing client IDs
+            throw new BadRequestException("Client ID must not change");
+        }
+    }
+
+    // Writes the non-null fields of the representation. Owner groups are only changed if given.
+    private void write(ClientModel clientModel, ClientRepresentation rep, List<String> ownerGroups) {
+        boolean written = false;
+        try {
+            final Set<String> currentOwnerGroups = getClientOwnerGroupIds(clientModel);
+            final Set<String> addedOwnerGroups = ownerGroups != null
+                    ? checkAddedOwnerGroups(ownerGroups, currentOwnerGroups) : Set.of();
+            final Set<String> removedOwnerGroups = ownerGroups != null
+                    ? currentOwnerGroups.stream().filter(groupId -> !ownerGroups.contains(groupId))
+                            .collect(Collectors.toSet()) : Set.of();
+
+            session.setAttribute(ClientSecretConstants.CLIENT_SECRET_ROTATION_ENABLED, Boolean.FALSE);
+            metrics.time("clientPolicy", () -> session.clientPolicy()
+                    .triggerOnEvent(new AdminClientUpdateContext(rep, clientModel, adminAuth.adminAuth())));
+
+            // users cannot enable or disable service accounts for a client
+
+            // We do not allow enabling authorization services for ssc clients, but an admin might have them enabled for
+            // a ssc client. Therefore, if the preconditions for enabling such clients (like having a secret client) do
+            // change we have to ensure that authorization services get disabled again.
+            if ((rep.isBearerOnly() != null && rep.isBearerOnly()) || (rep.isPublicClient() != null && rep.isPublicClient())) {
+                rep.setAuthorizationServicesEnabled(false);
+            }
+
+            written = true;
+            metrics.time("updateClient", () -> {
+                RepresentationToModel.updateClient(rep, clientModel, session);
+                if (!addedOwnerGroups.isEmpty() || !removedOwnerGroups.isEmpty()) {
+                    addedOwnerGroups.forEach(groupId -> clientModel.setAttribute(getGroupManageClientAttributeName(groupId),
+                            CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE));
+                    removedOwnerGroups.forEach(groupId -> clientModel.removeAttribute(getGroupManageClientAttributeName(groupId)));
+                    // the index got updated by the update event already, before the owner attributes changed
+                    new OwnershipIndex(session).reindexClient(clientModel);
+                    new ClientChangeLog(session).recordChange(clientModel);
+                    factory.getClientSearchIndex().update(session, clientModel);
+                }
+            });
+
+            validate(clientModel, false);
+
+            metrics.time("clientPolicy", () -> session.clientPolicy()
+                    .triggerOnEvent(new AdminClientUpdatedContext(rep, clientModel, adminAuth.adminAuth())));
+            sendAdminEvent(newAdminEvent().operation(OperationType.UPDATE).resourcePath(getResourcePath(clientModel)).representation(rep));
+        } catch (ModelDuplicateException e) {
+            session.getTransactionManager().setRollbackOnly();
+            throw ErrorResponse.exists("Client with specified (new) Client ID already exists");
+        } catch (ClientPolicyException cpe) {
+            metrics.rejected("policy");
+            if (written) {
+                session.getTransactionManager().setRollbackOnly();
+            }
+            throw new ErrorResponseException(cpe.getError(), cpe.getErrorDetail(), Response.Status.BAD_REQUEST);
+        }
+    }
+
+    public void delete(ClientModel clientModel) {
+        try {
+            metrics.time("clientPolicy", () -> session.clientPolicy()
+                    .triggerOnEvent(new AdminClientUnregisterContext(clientModel, adminAuth.adminAuth())));
+        } catch (ClientPolicyException cpe) {
+            metrics.rejected("policy");
+            throw new ErrorResponseException(cpe.getError(), cpe.getErrorDetail(), Response.Status.BAD_REQUEST);
+        }
+
+        final String[] resourcePath = getResourcePath(clientModel);
+        final boolean removed = metrics.time("removeClient",
+                () -> new ClientManager(new RealmManager(session)).removeClient(realm, clientModel));
+        if (removed) {
+            sendAdminEvent(newAdminEvent().operation(OperationType.DELETE).resourcePath(resourcePath));
+        } else {
+            throw new ErrorResponseException(OAuthErrorException.INVALID_REQUEST, "Could not delete client",
+                    Response.Status.BAD_REQUEST);
+        }
+    }
+
+    // Users can only add groups they are a member of, either directly or via a subgroup. Every added group has to have
+    // room for another client. Returns the added groups.
+    private Set<String> checkAddedOwnerGroups(List<String> ownerGroups, Set<String> currentOwnerGroups) {
+        final ClientOwners owners = ClientOwners.of(session, auth.getUser());
+        final Set<String> added = new LinkedHashSet<>();
+        for (String groupId : ownerGroups) {
+            if (groupId == null || currentOwnerGroups.contains(groupId)) {
+                continue;
+            }
+            if (!owners.isMember(groupId)) {
+                throw new ForbiddenException(String.format("You are not a member of group %s", groupId));
+            }
+            added.add(groupId);
+        }
+
+        try {
+            metrics.time("quota", () -> {
+                for (String groupId : added) {
+                    final GroupModel group = realm.getGroupById(groupId);
+                    final Integer limit = group != null ? ClientQuota.getLimit(group) : null;
+                    if (limit != null) {
+                        new ClientQuota(session).checkQuota(realm, group, limit, 1, () -> countGroupClients(groupId));
+                    }
+                }
+            });
+        } catch (ForbiddenException exc) {
+            metrics.rejected("quota");
+            throw exc;
+        }
+        return added;
+    }
+
+    private long countGroupClients(String groupId) {
+        if (factory.isOwnershipIndexReady()) {
+            return new OwnershipIndex(session).countClients(realm, OwnershipIndex.getGroupKey(groupId));
+        }
+        return SelfServiceResources.searchClientsByOwnerAttribute(session, realm, getGroupManageClientAttributeName(groupId))
+                .count();
+    }
+
+    // Only a safety net for rules of Keycloak or its validation providers not covered by the validation of the
+    // representation, which rejects invalid values before anything is written
+    private void validate(ClientModel clientModel, boolean create) {
+        metrics.time("validateClient", () -> ValidationUtil.validateClient(session, clientModel, create, r -> {
+            session.getTransactionManager().setRollbackOnly();
+            throw new ErrorResponseException(
+                    Errors.INVALID_INPUT,
+                    r.getAllLocalizedErrorsAsString(AdminRoot.getMessages(session, realm,
+                            adminAuth.adminAuth().getToken().getLocale())),
+                    Response.Status.BAD_REQUEST);
+        }));
+    }
+
+    // one builder per operation, so values of a previous operation of a batch do not leak into the next event
+    private AdminEventBuilder newAdminEvent() {
+        return new AdminEventBuilder(realm, adminAuth.adminAuth(), session, session.getContext().getConnection());
+    }
+
+    private void sendAdminEvent(AdminEventBuilder event) {
+        if (deferredAdminEvents != null) {
+            deferredAdminEvents.add(event);
+            return;
+        }
+        metrics.time("adminEvent", event::success);
+    }
+
+    // same path as derived from the request URI of the single client endpoints
+    private static String[] getResourcePath(ClientModel clientModel) {
+        return new String[] {SelfServiceProviderFactory.ID, "clients", clientModel.getId()};
+    }
+}
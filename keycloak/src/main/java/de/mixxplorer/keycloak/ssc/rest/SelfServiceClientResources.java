@@ -1,45 +1,44 @@
 package de.mixxplorer.keycloak.ssc.rest;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import de.mixxplorer.keycloak.ssc.changes.ClientChangeLog;
+import de.mixxplorer.keycloak.ssc.metrics.RequestMetrics;
 import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
 import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientWritableRepresentation;
 import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.PATCH;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
-import org.keycloak.OAuthErrorException;
-import org.keycloak.events.Errors;
 import org.keycloak.events.admin.OperationType;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.ClientSecretConstants;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.ModelDuplicateException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.models.utils.ModelToRepresentation;
-import org.keycloak.models.utils.RepresentationToModel;
 import org.keycloak.protocol.oidc.OIDCClientSecretConfigWrapper;
 import org.keycloak.representations.idm.ClientRepresentation;
 import org.keycloak.representations.idm.CredentialRepresentation;
-import org.keycloak.services.ErrorResponse;
 import org.keycloak.services.ErrorResponseException;
 import org.keycloak.services.clientpolicy.ClientPolicyException;
-import org.keycloak.services.clientpolicy.context.AdminClientUnregisterContext;
-import org.keycloak.services.clientpolicy.context.AdminClientUpdateContext;
-import org.keycloak.services.clientpolicy.context.AdminClientUpdatedContext;
 import org.keycloak.services.clientpolicy.context.ClientSecretRotationContext;
 import org.keycloak.services.managers.AuthenticationManager;
-import org.keycloak.services.managers.ClientManager;
-import org.keycloak.services.managers.RealmManager;
 import org.keycloak.services.resources.admin.AdminEventBuilder;
-import org.keycloak.services.resources.admin.AdminRoot;
 import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
-import org.keycloak.validation.ValidationUtil;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
 
 public class SelfServiceClientResources {
     private final KeycloakSession session;
@@ -48,93 +47,92 @@ public class SelfServiceClientResources {
     private final AuthenticationManager.AuthResult auth;
     private final AdminEventBuilder adminEvent;
     private final ClientModel clientModel;
+    private final SelfServiceProviderFactory factory;
 
     public SelfServiceClientResources(KeycloakSession keycloakSession, RealmModel realm,
                                       AuthenticationManager.AuthResult auth, AdminPermissionEvaluator adminAuth,
-                                      AdminEventBuilder adminEvent, ClientModel clientModel) {
+                                      AdminEventBuilder adminEvent, ClientModel clientModel,
+                                      SelfServiceProviderFactory factory) {
         this.session = keycloakSession;
         this.realm = realm;
         this.auth = auth;
         this.adminAuth = adminAuth;
         this.adminEvent = adminEvent;
         this.clientModel = clientModel;
+        this.factory = factory;
     }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public SelfServiceClientRepresentation get() {
-        ClientRepresentation representation = ModelToRepresentation.toRepresentation(clientModel, session);
+    public Response get(@QueryParam("fields") String fields) {
+        return RequestMetrics.get(session).endpoint("get", () -> getRepresentation(fields));
+    }
 
-        return new SelfServiceClientRepresentation(representation);
+    private Response getRepresentation(String fields) {
+        final Set<String> selectedFields = SelfServiceClientRepresentation.parseFields(fields);
+
+        final EntityTag tag = ClientETag.of(clientModel, session, selectedFields);
+        if (ClientETag.isNotModified(session.getContext().getRequestHeaders(), tag)) {
+            return Response.notModified(tag).build();
+        }
+
+        return Response.ok(factory.getClientRepresentationCache().get(clientModel, tag, session, selectedFields,
+                ClientRepresentationCache.getFieldsKey(selectedFields)).asUnquotedUTF8(), MediaType.APPLICATION_JSON)
+                .tag(tag)
+                .build();
     }
 
-    // based on org.keycloak.services.resources.admin (org/keycloak/services/resources/admin/ClientsResource.java)
     @DELETE
     public void delete() {
-        try {
-            session.clientPolicy().triggerOnEvent(new AdminClientUnregisterContext(clientModel, adminAuth.adminAuth()));
-        } catch (ClientPolicyException cpe) {
-            throw new ErrorResponseException(cpe.getError(), cpe.getErrorDetail(), Response.Status.BAD_REQUEST);
-        }
+        RequestMetrics.get(session).endpoint("delete", this::deleteClient);
+    }
 
-        if (new ClientManager(new RealmManager(session)).removeClient(realm, clientModel)) {
-            adminEvent.operation(OperationType.DELETE).resourcePath(session.getContext().getUri()).success();
-        } else {
-            throw new ErrorResponseException(OAuthErrorException.INVALID_REQUEST, "Could not delete client",
-                    Response.Status.BAD_REQUEST);
-        }
+    private void deleteClient() {
+        // optimistic concurrency: only delete the client the user has seen
+        ClientETag.checkIfMatch(session.getContext().getRequestHeaders(),
+                ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS));
+
+        new SelfServiceClientOperations(session, realm, auth, adminAuth, factory).delete(clientModel);
     }
 
     @PUT
     @Consumes(MediaType.APPLICATION_JSON)
     public Response update(final SelfServiceClientWritableRepresentation clientWritableRep) {
-        try {
-            ClientRepresentation rep = clientWritableRep.toClientRepresentation();
-
-            session.setAttribute(ClientSecretConstants.CLIENT_SECRET_ROTATION_ENABLED, Boolean.FALSE);
-            session.clientPolicy().triggerOnEvent(new AdminClientUpdateContext(rep, clientModel, adminAuth.adminAuth()));
-
-            // users cannot enable or disable service accounts for a client
-
-            if (rep.getClientId() != null && !rep.getClientId().equals(clientModel.getClientId())) {
-                // users are not allowed to change the client ID.
-                // Imaging the following case:
-                // * user creates a client
-                // * admin manually enables a specific functionality
-                // * user renames the client
-                // * user tricks the admin to enable another specific functionality for a now "new" client (from admin side)
-                // * client might have way too many rights, causing confusion for the admins
-                // Therefore: We do not allow changing client IDs
-                throw new BadRequestException("Client ID must not change");
-            }
+        return RequestMetrics.get(session).endpoint("update", () -> updateClient(clientWritableRep));
+    }
 
-            // We do not allow enabling authorization services for ssc clients, but an admin might have them enabled for
-            // a ssc client. Therefore, if the preconditions for enabling such clients (like having a secret client) do
-            // change we have to ensure that authorization services get disabled again.
-            if ((rep.isBearerOnly() != null && rep.isBearerOnly()) || (rep.isPublicClient() != null && rep.isPublicClient())) {
-                rep.setAuthorizationServicesEnabled(false);
-            }
+    private Response updateClient(final SelfServiceClientWritableRepresentation clientWritableRep) {
+        // optimistic concurrency: do not overwrite changes the user has not seen yet
+        ClientETag.checkIfMatch(session.getContext().getRequestHeaders(),
+                ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS));
 
-            RepresentationToModel.updateClient(rep, clientModel, session);
+        new SelfServiceClientOperations(session, realm, auth, adminAuth, factory).update(clientModel, clientWritableRep);
 
-            ValidationUtil.validateClient(session, clientModel, false, r -> {
-                session.getTransactionManager().setRollbackOnly();
-                throw new ErrorResponseException(
-                        Errors.INVALID_INPUT,
-                        r.getAllLocalizedErrorsAsString(AdminRoot.getMessages(session, realm,
-                                adminAuth.adminAuth().getToken().getLocale())),
-                        Response.Status.BAD_REQUEST);
-            });
+        return Response.noContent().tag(ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS)).build();
+    }
 
-            session.clientPolicy().triggerOnEvent(new AdminClientUpdatedContext(rep, clientModel, adminAuth.adminAuth()));
-            adminEvent.operation(OperationType.UPDATE).resourcePath(session.getContext().getUri()).representation(rep).success();
+    // Changes only the fields contained in the patch. A patch not changing anything neither writes the client, nor sends
+    // an event, nor invalidates caches.
+    @PATCH
+    @Consumes(ClientMergePatch.MEDIA_TYPE)
+    public Response patch(final InputStream body) {
+        return RequestMetrics.get(session).endpoint("patch", () -> patchClient(body));
+    }
 
-            return Response.noContent().build();
-        } catch (ModelDuplicateException e) {
-            throw ErrorResponse.exists("Client with specified (new) Client ID already exists");
-        } catch (ClientPolicyException cpe) {
-            throw new ErrorResponseException(cpe.getError(), cpe.getErrorDetail(), Response.Status.BAD_REQUEST);
+    private Response patchClient(final InputStream body) {
+        // optimistic concurrency: do not overwrite changes the user has not seen yet
+        ClientETag.checkIfMatch(session.getContext().getRequestHeaders(),
+                ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS));
+
+        final JsonNode patch;
+        try {
+            patch = JsonSerialization.mapper.readTree(body);
+        } catch (IOException exc) {
+            throw new BadRequestException("Invalid JSON merge patch");
         }
+        new SelfServiceClientOperations(session, realm, auth, adminAuth, factory).patch(clientModel, patch);
+
+        return Response.noContent().tag(ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS)).build();
     }
 
     // based on org.keycloak.services.resources.admin.ClientResource (org/keycloak/services/resources/admin/ClientResource.java)
@@ -142,6 +140,10 @@ public class SelfServiceClientResources {
     @POST
     @Produces(MediaType.APPLICATION_JSON)
     public SelfServiceClientRepresentation regenerateSecret() {
+        return RequestMetrics.get(session).endpoint("regenerateSecret", () -> regenerateClientSecret());
+    }
+
+    private SelfServiceClientRepresentation regenerateClientSecret() {
         try {
             session.setAttribute(ClientSecretConstants.CLIENT_SECRET_ROTATION_ENABLED,Boolean.FALSE);
 
@@ -151,7 +153,7 @@ public class SelfServiceClientResources {
 
             String secret = KeycloakModelUtils.generateSecret(clientModel);
 
-            session.clientPolicy().triggerOnEvent(secretRotationContext);
+            RequestMetrics.get(session).time("clientPolicy", () -> session.clientPolicy().triggerOnEvent(secretRotationContext));
 
             CredentialRepresentation rep = new CredentialRepresentation();
             rep.setType(CredentialRepresentation.SECRET);
@@ -161,12 +163,17 @@ public class SelfServiceClientResources {
                 OIDCClientSecretConfigWrapper.fromClientModel(clientModel).removeClientSecretRotationInfo();
             }
 
-            adminEvent.operation(OperationType.ACTION).resourcePath(session.getContext().getUri()).representation(rep).success();
+            // the secret is part of the client representation, but does not fire an update event
+            new ClientChangeLog(session).recordChange(clientModel);
+
+            RequestMetrics.get(session).time("adminEvent", () -> adminEvent.operation(OperationType.ACTION)
+                    .resourcePath(session.getContext().getUri()).representation(rep).success());
             session.removeAttribute(ClientSecretConstants.CLIENT_SECRET_ROTATION_ENABLED);
         } catch (ClientPolicyException cpe) {
+            RequestMetrics.get(session).rejected("policy");
             throw new ErrorResponseException(cpe.getError(), cpe.getErrorDetail(),
                     Response.Status.BAD_REQUEST);
         }
-        return get();
+        return new SelfServiceClientRepresentation(clientModel, session);
     }
 }
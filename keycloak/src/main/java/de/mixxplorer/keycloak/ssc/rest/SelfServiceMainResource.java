@@ -1,38 +1,61 @@
 package de.mixxplorer.keycloak.ssc.rest;
 
+import de.mixxplorer.keycloak.ssc.auth.BearerTokenCache;
+import de.mixxplorer.keycloak.ssc.auth.VerifiedBearerToken;
+import de.mixxplorer.keycloak.ssc.metrics.RequestMetrics;
+import de.mixxplorer.keycloak.ssc.ratelimit.RateLimiter;
+import de.mixxplorer.keycloak.ssc.realm.RealmActivation;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.HttpMethod;
 import jakarta.ws.rs.NotAuthorizedException;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.core.HttpHeaders;
 import org.keycloak.http.HttpRequest;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.services.cors.Cors;
 import org.keycloak.services.managers.AppAuthManager;
 import org.keycloak.services.managers.AuthenticationManager;
 
+import java.util.function.Function;
+
+import static de.mixxplorer.keycloak.ssc.Constants.SSC_ADMIN_CLIENT_ROLE;
 import static de.mixxplorer.keycloak.ssc.Constants.SSC_CLIENT_ID;
+import static de.mixxplorer.keycloak.ssc.Constants.SSC_DEBUG_CLIENT_ROLE;
 import static de.mixxplorer.keycloak.ssc.Constants.SSC_MANAGER_CLIENT_ROLE;
 
 public class SelfServiceMainResource {
     private final KeycloakSession keycloakSession;
+    private final SelfServiceProviderFactory factory;
 
-    public SelfServiceMainResource(KeycloakSession keycloakSession) {
+    public SelfServiceMainResource(KeycloakSession keycloakSession, SelfServiceProviderFactory factory) {
         this.keycloakSession = keycloakSession;
+        this.factory = factory;
     }
 
     // Main entry for self-service clients API
     @Path("")
     public Object getSelfServiceResources() {
-        // Prepare CORS response
+        return authenticateRequest(SSC_MANAGER_CLIENT_ROLE,
+                authResult -> new SelfServiceResources(this.keycloakSession, authResult, this.factory));
+    }
+
+    // Entry for operators of self service clients, which requires a separate role
+    @Path("admin")
+    public Object getSelfServiceAdminResources() {
+        return authenticateRequest(SSC_ADMIN_CLIENT_ROLE,
+                authResult -> new SelfServiceAdminResources(this.keycloakSession, this.factory));
+    }
+
+    private Object authenticateRequest(String requiredRole, Function<AuthenticationManager.AuthResult, Object> resources) {
         final HttpRequest request = keycloakSession.getContext().getHttpRequest();
-        Cors cors = Cors.builder().allowedMethods(HttpMethod.GET, HttpMethod.PUT, HttpMethod.POST, HttpMethod.DELETE).auth();
 
         // Do not continue, if the SSC_CLIENT_ID client is not available as this is an invalid configuration
-        final var sscClient = this.keycloakSession.clients().getClientByClientId(
-                this.keycloakSession.getContext().getRealm(), SSC_CLIENT_ID);
-        if (sscClient == null) {
-            cors.allowAllOrigins().add();
+        final RealmActivation activation = factory.getRealmActivation(keycloakSession, keycloakSession.getContext().getRealm());
+        if (!activation.enabled()) {
+            newCors().allowAllOrigins().add();
             throw new ForbiddenException(String.format("Self Service Clients not activated on this realm. "
                     + "Please ask your admin to create the %s client.", SSC_CLIENT_ID));
         }
@@ -42,15 +65,20 @@ public class SelfServiceMainResource {
         // the code tidy. Furthermore, Keycloak is internally doing the same with its Admin API.
         // see also org.keycloak.services.resources.admin
         if (request.getHttpMethod().equalsIgnoreCase(HttpMethod.OPTIONS)) {
-            return new SelfServicePreflight(cors).answerCors();
+            return new SelfServicePreflight(activation, request, factory.getCorsMaxAge()).answerCors();
         }
 
+        // Prepare CORS response
+        final Cors cors = newCors();
+
         // Check whether the user is authenticated. Doing this here ensures all requests forwarded to our real resources
         // are authenticated.
+        final RequestMetrics metrics = RequestMetrics.start(keycloakSession);
         AuthenticationManager.AuthResult authResult;
         try {
-            authResult = checkPermissionsAndGetUser(sscClient);
-        } catch (Exception exc) {
+            authResult = metrics.time("auth", () -> checkPermissionsAndGetUser(requiredRole));
+        } catch (RuntimeException exc) {
+            metrics.failed(exc);
             cors.allowAllOrigins().add();
             throw exc;
         }
@@ -59,22 +87,77 @@ public class SelfServiceMainResource {
         // downstream.
         cors.allowedOrigins(authResult.getToken()).add();
 
-        return new SelfServiceResources(this.keycloakSession, authResult);
+        // admission control, before any work is done for the request
+        try {
+            factory.getRateLimiter().acquire(metrics, activation.realmId(), authResult.getUser().getId(),
+                    getRateLimitKind(request), 1);
+        } catch (RuntimeException exc) {
+            metrics.failed(exc);
+            throw exc;
+        }
+
+        return resources.apply(authResult);
+    }
+
+    private static Cors newCors() {
+        return Cors.builder().allowedMethods(SelfServicePreflight.ALLOWED_METHODS)
+                .exposedHeaders(SelfServiceResources.TOTAL_COUNT_HEADER, HttpHeaders.ETAG, HttpHeaders.RETRY_AFTER,
+                        RateLimiter.RETRY_AFTER_MILLISECONDS_HEADER).auth();
+    }
+
+    // Secret rotations get their own bucket, as they invalidate the client across the cluster and are more expensive
+    // than other changes
+    private static RateLimiter.Kind getRateLimitKind(HttpRequest request) {
+        final String method = request.getHttpMethod();
+        if (method.equalsIgnoreCase(HttpMethod.GET) || method.equalsIgnoreCase(HttpMethod.HEAD)) {
+            return RateLimiter.Kind.READ;
+        } else if (request.getUri().getPath().endsWith("/secret/regenerate")) {
+            return RateLimiter.Kind.SECRET_ROTATION;
+        }
+        return RateLimiter.Kind.WRITE;
     }
 
     // Authenticate users centrally for all routes of the ssc API.
-    // Users must be in the SSC_MANAGER_CLIENT_ROLE client role of client SSC_CLIENT_ID
-    private AuthenticationManager.AuthResult checkPermissionsAndGetUser(ClientModel sscClient) {
-        final var auth = new AppAuthManager.BearerTokenAuthenticator(this.keycloakSession);
-        final var authResult = auth.authenticate();
-        if (authResult == null) {
+    // Users must be in the required client role (e.g. SSC_MANAGER_CLIENT_ROLE) of client SSC_CLIENT_ID
+    private AuthenticationManager.AuthResult checkPermissionsAndGetUser(String requiredRole) {
+        final RealmModel realm = keycloakSession.getContext().getRealm();
+        final String tokenString = AppAuthManager.extractAuthorizationHeaderToken(keycloakSession.getContext().getRequestHeaders());
+        if (tokenString == null) {
             throw new NotAuthorizedException("Not authorized");
-        } else if (authResult.getToken().getRealmAccess() == null
-                || authResult.getToken().getResourceAccess(sscClient.getClientId()) == null
-                || !authResult.getToken().getResourceAccess(sscClient.getClientId()).isUserInRole(SSC_MANAGER_CLIENT_ROLE)) {
+        }
+
+        final BearerTokenCache tokenCache = factory.getBearerTokenCache();
+        AuthenticationManager.AuthResult authResult = null;
+        VerifiedBearerToken verified = tokenCache.get(realm.getId(), tokenString);
+        if (verified != null) {
+            authResult = fromVerifiedToken(realm, verified);
+        }
+        if (authResult == null) {
+            authResult = new AppAuthManager.BearerTokenAuthenticator(this.keycloakSession).setTokenString(tokenString).authenticate();
+            if (authResult == null) {
+                throw new NotAuthorizedException("Not authorized");
+            }
+            verified = VerifiedBearerToken.of(realm.getId(), authResult, SSC_CLIENT_ID,
+                    tokenCache.getExpiresAt(authResult.getToken()));
+            tokenCache.put(tokenString, verified);
+        }
+
+        if (!verified.hasRole(requiredRole)) {
             throw new ForbiddenException(String.format("Token is missing the %s client role of client %s.",
-                    SSC_MANAGER_CLIENT_ROLE, SSC_CLIENT_ID));
+                    requiredRole, SSC_CLIENT_ID));
         }
+        RequestMetrics.get(keycloakSession).setServerTiming(verified.hasRole(SSC_DEBUG_CLIENT_ROLE));
         return authResult;
     }
+
+    // The user is still resolved (from the user cache), as it might have been removed or disabled on another node
+    private AuthenticationManager.AuthResult fromVerifiedToken(RealmModel realm, VerifiedBearerToken verified) {
+        final UserModel user = keycloakSession.users().getUserById(realm, verified.userId());
+        if (user == null || !user.isEnabled()) {
+            factory.getBearerTokenCache().evictUser(verified.userId());
+            return null;
+        }
+        final ClientModel client = verified.clientUuid() != null ? realm.getClientById(verified.clientUuid()) : null;
+        return new AuthenticationManager.AuthResult(user, null, verified.token(), client);
+    }
 }
@@ -1,26 +1,61 @@
 package de.mixxplorer.keycloak.ssc.rest;
 
+import de.mixxplorer.keycloak.ssc.realm.RealmActivation;
+import jakarta.ws.rs.HttpMethod;
 import jakarta.ws.rs.OPTIONS;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.Response;
+import org.keycloak.http.HttpRequest;
 import org.keycloak.services.cors.Cors;
 
 // Return CORS response for all sub paths.
+// Preflights are answered from the cached realm activation only, so they neither touch the models nor the database.
+// Apart from the echoed origin, the response is the same for all requests.
 public class SelfServicePreflight {
-    Cors cors;
+    public static final String[] ALLOWED_METHODS = {HttpMethod.GET, HttpMethod.PUT, HttpMethod.PATCH, HttpMethod.POST,
+            HttpMethod.DELETE};
 
-    public SelfServicePreflight(Cors cors) {
-        this.cors = cors;
+    private static final String ALLOW_METHODS = String.join(", ", ALLOWED_METHODS);
+    // Cors does not allow adding request headers, therefore we extend its defaults by the conditional request headers
+    private static final String ALLOW_HEADERS = String.join(", ", Cors.DEFAULT_ALLOW_HEADERS, Cors.AUTHORIZATION_HEADER,
+            HttpHeaders.IF_MATCH, HttpHeaders.IF_NONE_MATCH);
+
+    private final RealmActivation activation;
+    private final HttpRequest request;
+    private final String maxAge;
+
+    /**
+     * Creates the preflight response of a realm.
+     *
+     * @param maxAge seconds browsers may cache the preflight response
+     */
+    public SelfServicePreflight(RealmActivation activation, HttpRequest request, int maxAge) {
+        this.activation = activation;
+        this.request = request;
+        this.maxAge = Integer.toString(maxAge);
     }
 
     /**
      * Answer a CORS preflight request.
+     * Origins not within the web origins of the SSC_CLIENT_ID client get a response without CORS headers, which
+     * makes browsers reject the actual request.
      *
      * @return Response
      */
     @OPTIONS
     @Path("/{any:.*}")
     public Response answerCors() {
-        return cors.preflight().add(Response.ok());
+        final String origin = request.getHttpHeaders().getHeaderString(Cors.ORIGIN_HEADER);
+        final Response.ResponseBuilder response = Response.ok().header(HttpHeaders.VARY, Cors.ORIGIN_HEADER);
+        if (origin == null || !activation.isAllowedOrigin(origin)) {
+            return response.build();
+        }
+        return response.header(Cors.ACCESS_CONTROL_ALLOW_ORIGIN, origin)
+                .header(Cors.ACCESS_CONTROL_ALLOW_CREDENTIALS, "true")
+                .header(Cors.ACCESS_CONTROL_ALLOW_METHODS, ALLOW_METHODS)
+                .header(Cors.ACCESS_CONTROL_ALLOW_HEADERS, ALLOW_HEADERS)
+                .header(Cors.ACCESS_CONTROL_MAX_AGE, maxAge)
+                .build();
     }
 }
@@ -1,28 +1,401 @@
 package de.mixxplorer.keycloak.ssc.rest;
 
+import de.mixxplorer.keycloak.ssc.auth.BearerTokenCache;
+import de.mixxplorer.keycloak.ssc.changes.ChangeLogCleanupTask;
+import de.mixxplorer.keycloak.ssc.changes.ClientChangeLog;
+import de.mixxplorer.keycloak.ssc.orphans.OrphanSweepStatus;
+import de.mixxplorer.keycloak.ssc.orphans.OrphanSweepTask;
+import de.mixxplorer.keycloak.ssc.orphans.OrphanedClients;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import de.mixxplorer.keycloak.ssc.quota.ClientQuota;
+import de.mixxplorer.keycloak.ssc.ratelimit.RateLimiter;
+import de.mixxplorer.keycloak.ssc.realm.RealmActivation;
+import de.mixxplorer.keycloak.ssc.realm.RealmActivationCache;
+import de.mixxplorer.keycloak.ssc.realm.UrlAllowList;
+import de.mixxplorer.keycloak.ssc.realm.UrlAllowListCache;
+import de.mixxplorer.keycloak.ssc.rotation.SecretRotationStatus;
+import de.mixxplorer.keycloak.ssc.rotation.SecretRotationTask;
+import de.mixxplorer.keycloak.ssc.search.ClientSearchIndex;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsageCounters;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsageFlushTask;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsageStore;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.executors.ExecutorsProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ProviderEvent;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static de.mixxplorer.keycloak.ssc.Constants.MAX_CLIENTS_PER_USER;
+import static de.mixxplorer.keycloak.ssc.Constants.REALM_MAX_CLIENTS_PER_USER_ATTRIBUTE;
+import static de.mixxplorer.keycloak.ssc.Constants.SSC_CLIENT_ID;
 
 public class SelfServiceProviderFactory implements RealmResourceProviderFactory {
+    public static final String ID = "self-service-clients";
+
+    private static final Logger logger = Logger.getLogger(SelfServiceProviderFactory.class);
+    // e.g. conflicts with other cluster nodes rebuilding the index at the same time
+    private static final int OWNERSHIP_INDEX_REBUILD_ATTEMPTS = 3;
+
+    // The ownership index is rebuilt in the background after startup. Until this succeeded on this node, we fall back
+    // to searching the client attributes directly.
+    private volatile boolean ownershipIndexReady = false;
+
+    private RealmActivationCache realmActivationCache;
+    private final UrlAllowListCache urlAllowListCache = new UrlAllowListCache();
+    private BearerTokenCache bearerTokenCache;
+    private ClientSearchIndex clientSearchIndex;
+    private ClientRepresentationCache clientRepresentationCache;
+    private RateLimiter rateLimiter;
+    private int corsMaxAge;
+    private int importChunkSize;
+    private long changeLogRetentionMillis;
+    private Config.Scope secretRotationConfig;
+    // null if the secret rotation is disabled
+    private SecretRotationStatus secretRotationStatus;
+    private Config.Scope orphanSweepConfig;
+    // null if the orphan sweeper is disabled
+    private OrphanSweepTask.Action orphanAction;
+    private OrphanSweepStatus orphanSweepStatus;
+    // null if the usage statistics are disabled
+    private ClientUsageCounters clientUsageCounters;
+    private long usageFlushIntervalMillis;
+    private int usageFlushBatchSize;
+    private ClientUsageFlushTask clientUsageFlushTask;
+
     @Override
     public RealmResourceProvider create(KeycloakSession keycloakSession) {
-        return new SelfService(keycloakSession);
+        return new SelfService(keycloakSession, this);
     }
 
     @Override
-    public void init(Config.Scope scope) {}
+    public void init(Config.Scope scope) {
+        realmActivationCache = new RealmActivationCache(scope.getLong("activationCacheTtl", 60L) * 1000L,
+                scope.getInt("maxClientsPerUser", MAX_CLIENTS_PER_USER));
+        // opt-in, as only logouts on this node evict cached tokens
+        bearerTokenCache = new BearerTokenCache(scope.getLong("tokenCacheTtl", 0L) * 1000L,
+                scope.getInt("tokenCacheMaxEntries", 10000));
+
+        // reloaded after this time, so changes done on other cluster nodes become searchable
+        clientSearchIndex = new ClientSearchIndex(scope.getLong("searchIndexTtl", 300L) * 1000L);
+        // serialized client representations, 0 disables the cache
+        clientRepresentationCache = new ClientRepresentationCache(scope.getInt("representationCacheMaxEntries", 10000));
+        // browsers limit this further, e.g. Chromium to 2 hours
+        corsMaxAge = scope.getInt("corsMaxAge", 3600);
+        // clients created per transaction by imports
+        importChunkSize = Math.max(1, scope.getInt("importChunkSize", 50));
+        // sync tokens of the change feed expire after this time, as deletions are forgotten
+        changeLogRetentionMillis = TimeUnit.SECONDS.toMillis(scope.getLong("changeLogRetention", TimeUnit.DAYS.toSeconds(7)));
+
+        // requests per minute, e.g. rateLimitWritesPerUser and rateLimitWritesPerRealm, 0 disables the limit
+        // A batch takes a token per operation, so the bucket for changes holds at least the largest batch. Otherwise,
+        // valid batches would always be rejected.
+        final int burstSeconds = scope.getInt("rateLimitBurstSeconds", 10);
+        final Map<RateLimiter.Kind, RateLimiter.Limit> userLimits = new EnumMap<>(RateLimiter.Kind.class);
+        final Map<RateLimiter.Kind, RateLimiter.Limit> realmLimits = new EnumMap<>(RateLimiter.Kind.class);
+        for (RateLimiter.Kind kind : RateLimiter.Kind.values()) {
+            final int minCapacity = kind == RateLimiter.Kind.WRITE ? SelfServiceResources.MAX_BATCH_SIZE : 1;
+            userLimits.put(kind, RateLimiter.Limit.of(scope.getInt("rateLimit" + kind.getOptionName() + "PerUser",
+                    kind.getDefaultPerUser()), burstSeconds, minCapacity));
+            realmLimits.put(kind, RateLimiter.Limit.of(scope.getInt("rateLimit" + kind.getOptionName() + "PerRealm", 0),
+                    burstSeconds, minCapacity));
+        }
+        rateLimiter = new RateLimiter(userLimits, realmLimits);
+
+        // a chunk takes one token per client, so it cannot be larger than the bucket for changes
+        if (importChunkSize > rateLimiter.getMaxPermits(RateLimiter.Kind.WRITE)) {
+            logger.warnf("Import chunk size %d exceeds the %d changes the rate limit allows at once, using %d instead",
+                    importChunkSize, rateLimiter.getMaxPermits(RateLimiter.Kind.WRITE),
+                    rateLimiter.getMaxPermits(RateLimiter.Kind.WRITE));
+            importChunkSize = rateLimiter.getMaxPermits(RateLimiter.Kind.WRITE);
+        }
+
+        // disabled by default, as rotating secrets requires all applications to fetch the new secret in time
+        secretRotationConfig = scope;
+        if (scope.getInt("secretRotationDays", 0) > 0) {
+            secretRotationStatus = new SecretRotationStatus();
+        }
+
+        // disabled by default, as clients of removed users might still be in use
+        orphanSweepConfig = scope;
+        orphanAction = OrphanSweepTask.Action.parse(scope.get("orphanAction", "none"));
+        if (orphanAction != null) {
+            orphanSweepStatus = new OrphanSweepStatus();
+        }
+
+        // usage counted on this node is written to the database in this interval, 0 disables the usage statistics
+        usageFlushIntervalMillis = scope.getLong("usageFlushInterval", 60L) * 1000L;
+        usageFlushBatchSize = scope.getInt("usageFlushBatchSize", 100);
+        if (usageFlushIntervalMillis > 0) {
+            clientUsageCounters = new ClientUsageCounters();
+        }
+    }
 
     @Override
-    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {}
+    public void postInit(KeycloakSessionFactory keycloakSessionFactory) {
+        keycloakSessionFactory.register(this::onProviderEvent);
+    }
 
+    // Writes the usage counted since the last flush, so a graceful shutdown does not lose it
     @Override
-    public void close() {}
+    public void close() {
+        if (clientUsageFlushTask != null) {
+            try {
+                clientUsageFlushTask.run();
+            } catch (RuntimeException exc) {
+                logger.warn("Could not flush usage of self service clients on shutdown", exc);
+            }
+        }
+    }
 
     @Override
     public String getId() {
-        return "self-service-clients";
+        return ID;
+    }
+
+    public boolean isOwnershipIndexReady() {
+        return ownershipIndexReady;
+    }
+
+    // For the scale benchmarks, which have no database to rebuild the index from
+    void setOwnershipIndexReady(boolean ownershipIndexReady) {
+        this.ownershipIndexReady = ownershipIndexReady;
+    }
+
+    public RealmActivation getRealmActivation(KeycloakSession session, RealmModel realm) {
+        return realmActivationCache.get(session, realm);
+    }
+
+    public UrlAllowList getUrlAllowList(RealmModel realm) {
+        return urlAllowListCache.get(realm);
+    }
+
+    public int getCorsMaxAge() {
+        return corsMaxAge;
+    }
+
+    public int getImportChunkSize() {
+        return importChunkSize;
+    }
+
+    public long getChangeLogRetentionMillis() {
+        return changeLogRetentionMillis;
+    }
+
+    public BearerTokenCache getBearerTokenCache() {
+        return bearerTokenCache;
+    }
+
+    public ClientSearchIndex getClientSearchIndex() {
+        return clientSearchIndex;
+    }
+
+    public ClientRepresentationCache getClientRepresentationCache() {
+        return clientRepresentationCache;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public SecretRotationStatus getSecretRotationStatus() {
+        return secretRotationStatus;
+    }
+
+    public OrphanSweepStatus getOrphanSweepStatus() {
+        return orphanSweepStatus;
+    }
+
+    public ClientUsageCounters getClientUsageCounters() {
+        return clientUsageCounters;
+    }
+
+    // Keeps the ownership index, quota counters, search index and cached realm activations in line with changes done
+    // outside the self service API (e.g. via the admin console).
+    // Provider events are fired within the transaction of the change.
+    private void onProviderEvent(ProviderEvent event) {
+        if (event instanceof PostMigrationEvent postMigrationEvent) {
+            rebuildOwnershipIndexInBackground(postMigrationEvent.getFactory());
+            scheduleSecretRotation(postMigrationEvent.getFactory());
+            scheduleChangeLogCleanup(postMigrationEvent.getFactory());
+            scheduleOrphanSweep(postMigrationEvent.getFactory());
+            scheduleUsageFlush(postMigrationEvent.getFactory());
+        } else if (event instanceof ClientModel.ClientCreationEvent clientCreationEvent) {
+            invalidateRealmActivation(clientCreationEvent.getCreatedClient(), null);
+        } else if (event instanceof ClientModel.ClientUpdatedEvent clientUpdatedEvent) {
+            invalidateRealmActivation(clientUpdatedEvent.getUpdatedClient(), clientUpdatedEvent.getKeycloakSession());
+            new OwnershipIndex(clientUpdatedEvent.getKeycloakSession()).reindexClient(clientUpdatedEvent.getUpdatedClient());
+            new ClientChangeLog(clientUpdatedEvent.getKeycloakSession()).recordChange(clientUpdatedEvent.getUpdatedClient());
+            clientSearchIndex.update(clientUpdatedEvent.getKeycloakSession(), clientUpdatedEvent.getUpdatedClient());
+            clientRepresentationCache.invalidate(clientUpdatedEvent.getUpdatedClient().getId());
+        } else if (event instanceof ClientModel.ClientRemovedEvent clientRemovedEvent) {
+            invalidateRealmActivation(clientRemovedEvent.getClient(), clientRemovedEvent.getKeycloakSession());
+            new OwnershipIndex(clientRemovedEvent.getKeycloakSession()).removeClient(clientRemovedEvent.getClient().getId());
+            new ClientChangeLog(clientRemovedEvent.getKeycloakSession()).recordRemoval(clientRemovedEvent.getClient());
+            clientSearchIndex.remove(clientRemovedEvent.getKeycloakSession(), clientRemovedEvent.getClient());
+            clientRepresentationCache.invalidate(clientRemovedEvent.getClient().getId());
+            new OrphanedClients(clientRemovedEvent.getKeycloakSession()).remove(clientRemovedEvent.getClient().getId());
+            if (clientUsageCounters != null) {
+                clientUsageCounters.remove(clientRemovedEvent.getClient().getRealm().getId(),
+                        clientRemovedEvent.getClient().getClientId());
+            }
+            // removed regardless of the option, the statistics might have been enabled before
+            new ClientUsageStore(clientRemovedEvent.getKeycloakSession()).removeClient(clientRemovedEvent.getClient().getId());
+        } else if (event instanceof RealmModel.RealmAttributeUpdateEvent realmAttributeUpdateEvent) {
+            if (REALM_MAX_CLIENTS_PER_USER_ATTRIBUTE.equals(realmAttributeUpdateEvent.getAttributeName())) {
+                realmActivationCache.invalidate(realmAttributeUpdateEvent.getRealm().getId(),
+                        realmAttributeUpdateEvent.getKeycloakSession());
+            }
+        } else if (event instanceof UserModel.UserRemovedEvent userRemovedEvent) {
+            bearerTokenCache.evictUser(userRemovedEvent.getUser().getId());
+            new ClientQuota(userRemovedEvent.getKeycloakSession()).removeUser(userRemovedEvent.getRealm().getId(),
+                    userRemovedEvent.getUser().getId());
+            if (orphanSweepStatus != null) {
+                OrphanedClients.queueUserClientsAfterCommit(userRemovedEvent.getKeycloakSession(), userRemovedEvent.getRealm(),
+                        userRemovedEvent.getUser().getId(), orphanSweepStatus);
+            }
+        } else if (event instanceof GroupModel.GroupRemovedEvent groupRemovedEvent) {
+            final KeycloakSession session = groupRemovedEvent.getKeycloakSession();
+            for (ClientModel client : new OwnershipIndex(session).removeGroup(groupRemovedEvent.getRealm(),
+                    groupRemovedEvent.getGroup().getId())) {
+                new ClientChangeLog(session).recordChange(client);
+                clientSearchIndex.update(session, client);
+                clientRepresentationCache.invalidate(client.getId());
+            }
+            new ClientQuota(groupRemovedEvent.getKeycloakSession()).removeGroup(groupRemovedEvent.getRealm().getId(),
+                    groupRemovedEvent.getGroup().getId());
+        } else if (event instanceof RealmModel.RealmRemovedEvent realmRemovedEvent) {
+            realmActivationCache.invalidate(realmRemovedEvent.getRealm().getId(), realmRemovedEvent.getKeycloakSession());
+            bearerTokenCache.evictRealm(realmRemovedEvent.getRealm().getId());
+            urlAllowListCache.invalidate(realmRemovedEvent.getRealm().getId());
+            clientSearchIndex.invalidate(realmRemovedEvent.getRealm().getId());
+            new OwnershipIndex(realmRemovedEvent.getKeycloakSession()).removeRealm(realmRemovedEvent.getRealm().getId());
+            new ClientChangeLog(realmRemovedEvent.getKeycloakSession()).removeRealm(realmRemovedEvent.getRealm().getId());
+            new OrphanedClients(realmRemovedEvent.getKeycloakSession()).removeRealm(realmRemovedEvent.getRealm().getId());
+            if (clientUsageCounters != null) {
+                clientUsageCounters.removeRealm(realmRemovedEvent.getRealm().getId());
+            }
+            new ClientUsageStore(realmRemovedEvent.getKeycloakSession()).removeRealm(realmRemovedEvent.getRealm().getId());
+        }
+    }
+
+    // The activation changes whenever the SSC_CLIENT_ID client is created, renamed or removed
+    private void invalidateRealmActivation(ClientModel client, KeycloakSession session) {
+        final String realmId = client.getRealm().getId();
+        final RealmActivation cached = realmActivationCache.getIfPresent(realmId);
+        if (SSC_CLIENT_ID.equals(client.getClientId()) || (cached != null && client.getId().equals(cached.sscClientUuid()))) {
+            realmActivationCache.invalidate(realmId, session);
+        }
+    }
+
+    private void scheduleChangeLogCleanup(KeycloakSessionFactory sessionFactory) {
+        final ChangeLogCleanupTask task = new ChangeLogCleanupTask(changeLogRetentionMillis);
+        final long intervalMillis = TimeUnit.HOURS.toMillis(1);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.getProvider(TimerProvider.class)
+                .schedule(new ClusterAwareScheduledTaskRunner(sessionFactory, task, intervalMillis), intervalMillis, task.getTaskName()));
+    }
+
+    // Every node schedules the task, ClusterAwareScheduledTaskRunner makes sure only one of them runs it per interval
+    private void scheduleSecretRotation(KeycloakSessionFactory sessionFactory) {
+        if (secretRotationStatus == null) {
+            return;
+        }
+        final Config.Scope scope = secretRotationConfig;
+        final long period = TimeUnit.DAYS.toSeconds(scope.getInt("secretRotationDays"));
+        final long intervalMillis = scope.getLong("secretRotationInterval", 3600L) * 1000L;
+        final SecretRotationTask task = new SecretRotationTask(sessionFactory, secretRotationStatus, period,
+                period * scope.getInt("secretRotationJitterPercent", 10) / 100,
+                scope.getInt("secretRotationGracePeriod", (int) TimeUnit.DAYS.toSeconds(7)),
+                scope.getInt("secretRotationBatchSize", 100), scope.getInt("secretRotationMaxPerRun", 1000));
+
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.getProvider(TimerProvider.class)
+                .schedule(new ClusterAwareScheduledTaskRunner(sessionFactory, task, intervalMillis), intervalMillis, task.getTaskName()));
+        logger.debugf("Scheduled self service client secret rotation every %d days", TimeUnit.SECONDS.toDays(period));
+    }
+
+    private void scheduleOrphanSweep(KeycloakSessionFactory sessionFactory) {
+        if (orphanSweepStatus == null) {
+            return;
+        }
+        final Config.Scope scope = orphanSweepConfig;
+        final long intervalMillis = scope.getLong("orphanSweepInterval", 3600L) * 1000L;
+        final OrphanSweepTask task = new OrphanSweepTask(sessionFactory, orphanSweepStatus, orphanAction,
+                scope.getLong("orphanGracePeriod", TimeUnit.DAYS.toSeconds(30)) * 1000L,
+                scope.getInt("orphanSweepBatchSize", 50), scope.getInt("orphanSweepMaxChecksPerRun", 1000),
+                scope.getInt("orphanSweepMaxActionsPerRun", 100));
+
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.getProvider(TimerProvider.class)
+                .schedule(new ClusterAwareScheduledTaskRunner(sessionFactory, task, intervalMillis), intervalMillis, task.getTaskName()));
+        logger.debugf("Scheduled sweeping orphaned self service clients (%s)", orphanAction);
+    }
+
+    // Every node flushes the usage counted by itself, so the task is not cluster aware
+    private void scheduleUsageFlush(KeycloakSessionFactory sessionFactory) {
+        if (clientUsageCounters == null) {
+            return;
+        }
+        final ClientUsageFlushTask task = new ClientUsageFlushTask(sessionFactory, clientUsageCounters, usageFlushBatchSize);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.getProvider(TimerProvider.class)
+                .schedule(task, usageFlushIntervalMillis, ClientUsageFlushTask.TASK_NAME));
+        clientUsageFlushTask = task;
+        logger.debugf("Scheduled flushing usage of self service clients every %d seconds",
+                TimeUnit.MILLISECONDS.toSeconds(usageFlushIntervalMillis));
+    }
+
+    private void rebuildOwnershipIndexInBackground(KeycloakSessionFactory sessionFactory) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session.getProvider(ExecutorsProvider.class)
+                .getExecutor("self-service-clients").execute(() -> rebuildOwnershipIndex(sessionFactory)));
+    }
+
+    // Rebuilds the index realm by realm, each in its own transaction.
+    // Cluster nodes starting at the same time rebuild concurrently and insert the same missing entries. All but one of
+    // them fail on the unique constraint of the index, and retry once the other one committed. The retry only writes
+    // what is still missing, which usually is nothing.
+    private void rebuildOwnershipIndex(KeycloakSessionFactory sessionFactory) {
+        final List<String> realmIds = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                session -> session.realms().getRealmsStream().map(RealmModel::getId).toList());
+
+        boolean success = true;
+        for (String realmId : realmIds) {
+            success &= rebuildOwnershipIndex(sessionFactory, realmId);
+        }
+
+        ownershipIndexReady = success;
+        logger.debugf("Rebuilt self service client ownership index of %d realms (success: %s)", realmIds.size(), success ? "yes" : "no");
+    }
+
+    private boolean rebuildOwnershipIndex(KeycloakSessionFactory sessionFactory, String realmId) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    final RealmModel realm = session.realms().getRealm(realmId);
+                    if (realm != null) {
+                        new OwnershipIndex(session).rebuild(realm);
+                    }
+                });
+                return true;
+            } catch (RuntimeException exc) {
+                if (attempt == OWNERSHIP_INDEX_REBUILD_ATTEMPTS) {
+                    logger.warnf(exc, "Could not rebuild self service client ownership index of realm %s", realmId);
+                    return false;
+                }
+                logger.debugf(exc, "Rebuilding self service client ownership index of realm %s failed, retrying", realmId);
+            }
+        }
     }
 }
@@ -1,8 +1,26 @@
 package de.mixxplorer.keycloak.ssc.rest;
 
+import com.fasterxml.jackson.core.SerializableString;
+import de.mixxplorer.keycloak.ssc.Util;
+import de.mixxplorer.keycloak.ssc.changes.ClientChangeLog;
+import de.mixxplorer.keycloak.ssc.jpa.ClientChangeEntity;
+import de.mixxplorer.keycloak.ssc.metrics.RequestMetrics;
+import de.mixxplorer.keycloak.ssc.ownership.ClientOwners;
+import de.mixxplorer.keycloak.ssc.ownership.ClientSort;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import de.mixxplorer.keycloak.ssc.quota.ClientQuota;
+import de.mixxplorer.keycloak.ssc.ratelimit.RateLimiter;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceBatchRequest;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceBatchResult;
+import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientChanges;
 import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientRepresentation;
 import de.mixxplorer.keycloak.ssc.rest.dto.SelfServiceClientWritableRepresentation;
+import de.mixxplorer.keycloak.ssc.search.ClientSearchIndex;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsage;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsageStore;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.ForbiddenException;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.NotFoundException;
@@ -10,47 +28,69 @@ import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import org.eclipse.microprofile.openapi.annotations.responses.APIResponse;
-import org.keycloak.events.Errors;
-import org.keycloak.events.admin.OperationType;
+import org.keycloak.common.util.Time;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.ModelDuplicateException;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.utils.ModelToRepresentation;
-import org.keycloak.representations.idm.ClientRepresentation;
-import org.keycloak.services.ErrorResponse;
-import org.keycloak.services.ErrorResponseException;
-import org.keycloak.services.clientpolicy.ClientPolicyException;
-import org.keycloak.services.clientpolicy.context.AdminClientRegisterContext;
-import org.keycloak.services.clientpolicy.context.AdminClientRegisteredContext;
+import org.keycloak.representations.idm.ErrorRepresentation;
+import org.keycloak.representations.idm.OAuth2ErrorRepresentation;
 import org.keycloak.services.managers.AuthenticationManager;
-import org.keycloak.services.managers.ClientManager;
 import org.keycloak.services.resources.admin.AdminAuth;
 import org.keycloak.services.resources.admin.AdminEventBuilder;
-import org.keycloak.services.resources.admin.AdminRoot;
 import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
 import org.keycloak.services.resources.admin.fgap.AdminPermissions;
-import org.keycloak.validation.ValidationUtil;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import static de.mixxplorer.keycloak.ssc.Constants.MAX_CLIENTS_PER_USER;
-import static de.mixxplorer.keycloak.ssc.Util.getUserManageClientAttributeMap;
-import static de.mixxplorer.keycloak.ssc.Util.hasUserAccessToClient;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+import static de.mixxplorer.keycloak.ssc.Util.getUserManageClientAttributeName;
 
 public class SelfServiceResources {
+    public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final String MATCH_SUBSTRING = "substring";
+    private static final String MATCH_PREFIX = "prefix";
+    // writable fields, which can be imported again. Owner groups are left out, as they are specific to a realm.
+    private static final Set<String> EXPORT_FIELDS = Set.of("clientId", "name", "description", "rootUrl", "baseUrl",
+            "enabled", "redirectUris", "webOrigins", "publicClient", "frontchannelLogout",
+            "backchannelLogoutRevokeOfflineTokens", "backchannelLogoutSessionRequired", "backchannelLogoutUrl",
+            "frontchannelLogoutUrl", "postLogoutRedirectUris");
+    static final int MAX_BATCH_SIZE = 100;
+    private static final String BATCH_MODE_ATOMIC = "atomic";
+    private static final String BATCH_MODE_BEST_EFFORT = "bestEffort";
+    // RFC 4918, not part of Response.Status
+    private static final int FAILED_DEPENDENCY = 424;
+
     private final KeycloakSession session;
     private final RealmModel realm;
     private final AdminPermissionEvaluator adminAuth;
     private final AuthenticationManager.AuthResult auth;
     private final AdminEventBuilder adminEvent;
+    private final SelfServiceProviderFactory factory;
 
-    public SelfServiceResources(KeycloakSession keycloakSession, AuthenticationManager.AuthResult auth) {
+    public SelfServiceResources(KeycloakSession keycloakSession, AuthenticationManager.AuthResult auth,
+                                SelfServiceProviderFactory factory) {
         this.session = keycloakSession;
+        this.factory = factory;
         this.realm = keycloakSession.getContext().getRealm();
         this.auth = auth;
         // we assume we have a valid authentication we can use to construct these objects
@@ -62,90 +102,476 @@ public class SelfServiceResources {
     @GET
     @Path("clients")
     @Produces(MediaType.APPLICATION_JSON)
-    public Stream<SelfServiceClientRepresentation> getClients() {
-        final Map<String, String> clientAttributes = getUserManageClientAttributeMap(auth.getUser());
+    public Response getClients(@QueryParam("first") @DefaultValue("0") int first,
+                               @QueryParam("max") @DefaultValue("100") int max,
+                               @QueryParam("sort") @DefaultValue("clientId") String sort,
+                               @QueryParam("fields") String fields,
+                               @QueryParam("q") String query,
+                               @QueryParam("match") @DefaultValue(MATCH_SUBSTRING) String match) {
+        return RequestMetrics.get(session).endpoint(query != null && !query.isBlank() ? "search" : "list",
+                () -> listClients(first, max, sort, fields, query, match));
+    }
 
-        Stream<ClientModel> clientModels = realm.searchClientByAttributes(clientAttributes, null, null);
+    private Response listClients(int first, int max, String sort, String fields, String query, String match) {
+        if (first < 0 || max < 1 || max > MAX_PAGE_SIZE) {
+            throw new BadRequestException(String.format("first must not be negative and max must be between 1 and %d",
+                    MAX_PAGE_SIZE));
+        }
+        final ClientSort clientSort = ClientSort.parse(sort);
+        final Set<String> selectedFields = SelfServiceClientRepresentation.parseFields(fields);
+        final boolean descending = ClientSort.isDescending(sort);
 
-        // we have to filter our results manually, see https://github.com/keycloak/keycloak/issues/25976
-        // also even when using the internal SPI, it is not possible to overcome the global attribute filter
-        clientModels = clientModels.filter(model -> hasUserAccessToClient(model, auth.getUser()));
+        // clients of the user and all of its groups
+        final ClientOwners owners = ClientOwners.of(session, auth.getUser());
+        final long total;
+        final List<ClientModel> clientModels;
+        if (query != null && !query.isBlank()) {
+            if (!match.equals(MATCH_SUBSTRING) && !match.equals(MATCH_PREFIX)) {
+                throw new BadRequestException(String.format("Unknown match mode %s", match));
+            }
+            // only the models of the requested page are loaded
+            final List<ClientSearchIndex.Entry> matches = RequestMetrics.get(session).time("searchIndex",
+                    () -> factory.getClientSearchIndex().search(session, realm, owners, query.strip(),
+                            match.equals(MATCH_PREFIX), clientSort, descending));
+            total = matches.size();
+            final List<String> matchIds = matches.stream().map(ClientSearchIndex.Entry::id).toList();
+            clientModels = (clientSort.isUsage() ? sortByUsage(matchIds, clientSort, descending) : matchIds).stream()
+                    .skip(first)
+                    .limit(max)
+                    .map(realm::getClientById)
+                    .filter(Objects::nonNull)
+                    // the index is updated after commit only, the attributes are the source of truth
+                    .filter(owners::hasAccess)
+                    .toList();
+        } else if (factory.isOwnershipIndexReady() && clientSort.isUsage()) {
+            final List<String> clientIds = new OwnershipIndex(session)
+                    .getClientIds(realm, owners, ClientSort.CLIENT_ID, false, 0, Integer.MAX_VALUE)
+                    .toList();
+            total = clientIds.size();
+            clientModels = sortByUsage(clientIds, clientSort, descending).stream()
+                    .skip(first)
+                    .limit(max)
+                    .map(realm::getClientById)
+                    .filter(Objects::nonNull)
+                    .filter(owners::hasAccess)
+                    .toList();
+        } else if (factory.isOwnershipIndexReady()) {
+            final OwnershipIndex ownershipIndex = new OwnershipIndex(session);
+            total = ownershipIndex.countClients(realm, owners);
+            clientModels = ownershipIndex.getClientIds(realm, owners, clientSort, descending, first, max)
+                    .map(realm::getClientById)
+                    .filter(Objects::nonNull)
+                    // only a safety net, as the attributes are the source of truth
+                    .filter(owners::hasAccess)
+                    .toList();
+        } else {
+            List<ClientModel> allClientModels = getOwnedClientModels(owners)
+                    .sorted(clientSort.getComparator(descending))
+                    .toList();
+            if (clientSort.isUsage()) {
+                final Map<String, ClientModel> byId = new HashMap<>();
+                allClientModels.forEach(model -> byId.put(model.getId(), model));
+                allClientModels = sortByUsage(List.copyOf(byId.keySet()), clientSort, descending).stream()
+                        .map(byId::get)
+                        .toList();
+            }
+            total = allClientModels.size();
+            clientModels = allClientModels.stream().skip(first).limit(max).toList();
+        }
+        if (!Collections.disjoint(selectedFields, SelfServiceClientRepresentation.USAGE_FIELDS)) {
+            preloadUsage(clientModels);
+        }
+
+        // answer conditional requests before building any representation
+        final List<EntityTag> clientTags = clientModels.stream()
+                .map(model -> ClientETag.of(model, session, selectedFields))
+                .toList();
+        final EntityTag tag = ClientETag.ofList(clientTags, total);
+        if (ClientETag.isNotModified(session.getContext().getRequestHeaders(), tag)) {
+            return Response.notModified(tag).header(TOTAL_COUNT_HEADER, total).build();
+        }
 
-        Stream<ClientRepresentation> intermediateOutput = ModelToRepresentation.filterValidRepresentations(clientModels,
-                c -> ModelToRepresentation.toRepresentation(c, session)
+        final ClientRepresentationCache cache = factory.getClientRepresentationCache();
+        final String fieldsKey = ClientRepresentationCache.getFieldsKey(selectedFields);
+        Stream<SerializableString> output = ModelToRepresentation.filterValidRepresentations(
+                IntStream.range(0, clientModels.size()).boxed(),
+                i -> cache.get(clientModels.get(i), clientTags.get(i), session, selectedFields, fieldsKey)
         );
 
-        return intermediateOutput.map(SelfServiceClientRepresentation::new);
+        return Response.ok(StreamingJson.array(output))
+                .tag(tag)
+                .header(TOTAL_COUNT_HEADER, total)
+                .build();
+    }
+
+    // Returns the clients changed since the sync token of the previous poll, which only reads the change log entries
+    // newer than the token. Without a token, or if the token expired, all clients are returned (resync).
+    @GET
+    @Path("clients/changes")
+    @Produces(MediaType.APPLICATION_JSON)
+    public SelfServiceClientChanges getChanges(@QueryParam("since") String since, @QueryParam("fields") String fields) {
+        return RequestMetrics.get(session).endpoint("changes", () -> listChanges(since, fields));
+    }
+
+    private SelfServiceClientChanges listChanges(String since, String fields) {
+        final Set<String> selectedFields = SelfServiceClientRepresentation.parseFields(fields);
+        final long now = Time.currentTimeMillis();
+        final Long sinceTimestamp = since != null ? ClientChangeLog.parseToken(since) : null;
+        if (since != null && sinceTimestamp == null) {
+            throw new BadRequestException("Invalid sync token");
+        }
+        final String token = ClientChangeLog.createToken(now);
+        final ClientOwners owners = ClientOwners.of(session, auth.getUser());
+
+        if (sinceTimestamp == null || sinceTimestamp < now - factory.getChangeLogRetentionMillis()) {
+            final List<ClientModel> clientModels = (factory.isOwnershipIndexReady()
+                    ? new OwnershipIndex(session).getClientIds(realm, owners, ClientSort.CLIENT_ID, false, 0, Integer.MAX_VALUE)
+                            .map(realm::getClientById)
+                            .filter(Objects::nonNull)
+                            .filter(owners::hasAccess)
+                    : getOwnedClientModels(owners)).toList();
+            if (!Collections.disjoint(selectedFields, SelfServiceClientRepresentation.USAGE_FIELDS)) {
+                preloadUsage(clientModels);
+            }
+            return new SelfServiceClientChanges(token, true, clientModels.stream()
+                    .map(model -> new SelfServiceClientChanges.Change(model.getId(), false,
+                            SelfServiceClientRepresentation.of(model, session, selectedFields)))
+                    .toList());
+        }
+
+        // A client owned by the user and its groups has an entry per owner. Whether the user still has access is
+        // decided by the client attributes, as a tombstone of one owner does not mean the others lost access.
+        final Set<String> changedIds = new LinkedHashSet<>();
+        new ClientChangeLog(session).getChanges(realm, owners, sinceTimestamp).stream()
+                .map(ClientChangeEntity::getClientId)
+                .forEach(changedIds::add);
+        final Map<String, ClientModel> models = new HashMap<>();
+        for (String clientId : changedIds) {
+            final ClientModel model = realm.getClientById(clientId);
+            if (model != null && owners.hasAccess(model)) {
+                models.put(clientId, model);
+            }
+        }
+        if (!Collections.disjoint(selectedFields, SelfServiceClientRepresentation.USAGE_FIELDS)) {
+            preloadUsage(List.copyOf(models.values()));
+        }
+        final List<SelfServiceClientChanges.Change> changes = new ArrayList<>(changedIds.size());
+        for (String clientId : changedIds) {
+            final ClientModel model = models.get(clientId);
+            if (model != null) {
+                changes.add(new SelfServiceClientChanges.Change(clientId, false,
+                        SelfServiceClientRepresentation.of(model, session, selectedFields)));
+            } else {
+                changes.add(new SelfServiceClientChanges.Change(clientId, true, null));
+            }
+        }
+        return new SelfServiceClientChanges(token, false, changes);
+    }
+
+    // Streams all clients of the user and its groups without their secrets, one JSON object per line. The lines can be
+    // imported again via importClients.
+    @GET
+    @Path("clients/export")
+    @Produces(StreamingJson.NDJSON)
+    public Response exportClients() {
+        return RequestMetrics.get(session).endpoint("export", () -> exportOwnedClients());
+    }
+
+    private Response exportOwnedClients() {
+        final ClientOwners owners = ClientOwners.of(session, auth.getUser());
+        final Stream<ClientModel> clientModels;
+        if (factory.isOwnershipIndexReady()) {
+            clientModels = new OwnershipIndex(session).getClientIds(realm, owners, ClientSort.CLIENT_ID, false, 0, Integer.MAX_VALUE)
+                    .map(realm::getClientById)
+                    .filter(Objects::nonNull)
+                    .filter(owners::hasAccess);
+        } else {
+            clientModels = getOwnedClientModels(owners).sorted(ClientSort.CLIENT_ID.getComparator(false));
+        }
+        // built within the transaction of the request, only writing them is streamed
+        final List<SelfServiceClientRepresentation> clients = clientModels
+                .map(model -> SelfServiceClientRepresentation.of(model, session, EXPORT_FIELDS))
+                .toList();
+        return Response.ok(StreamingJson.ndjson(clients.stream())).build();
+    }
+
+    // Creates the clients of an export, see ClientImport
+    @POST
+    @Path("clients/import")
+    @Consumes(StreamingJson.NDJSON)
+    @Produces(StreamingJson.NDJSON)
+    public Response importClients(final InputStream body) {
+        return RequestMetrics.get(session).endpoint("import", () -> Response.ok(StreamingJson.ndjson(
+                new ClientImport(session, auth, factory, factory.getImportChunkSize()).run(body).stream())).build());
+    }
+
+    // The usage is not indexed, so all clients of the list are sorted by it before paging
+    private List<String> sortByUsage(List<String> clientUuids, ClientSort sort, boolean descending) {
+        final Map<String, ClientUsage> usage = RequestMetrics.get(session).time("usage",
+                () -> ClientUsageStore.preload(session, clientUuids, Time.currentTimeMillis()));
+        return clientUuids.stream().sorted(sort.getUsageComparator(usage, descending)).toList();
+    }
+
+    // loads the usage of all returned clients at once, instead of once per representation
+    private void preloadUsage(List<ClientModel> clientModels) {
+        RequestMetrics.get(session).time("usage", () -> ClientUsageStore.preload(session,
+                clientModels.stream().map(ClientModel::getId).toList(), Time.currentTimeMillis()));
+    }
+
+    // Searches the owned clients via their attributes, which is only used until the ownership index is ready.
+    // Needs a search per group, but only for this short time.
+    private Stream<ClientModel> getOwnedClientModels(ClientOwners owners) {
+        final Set<String> seen = new HashSet<>();
+        return Stream.concat(Stream.of(getUserManageClientAttributeName(auth.getUser())),
+                        owners.getGroupIds().stream().map(Util::getGroupManageClientAttributeName))
+                .flatMap(attribute -> searchClientsByOwnerAttribute(session, realm, attribute))
+                .filter(model -> seen.add(model.getId()));
+    }
+
+    static Stream<ClientModel> searchClientsByOwnerAttribute(KeycloakSession session, RealmModel realm, String attribute) {
+        Stream<ClientModel> clientModels = realm.searchClientByAttributes(
+                Map.of(attribute, CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE), null, null);
+
+        // we have to filter our results manually, see https://github.com/keycloak/keycloak/issues/25976
+        // also even when using the internal SPI, it is not possible to overcome the global attribute filter
+        return clientModels.filter(model -> CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE.equals(model.getAttribute(attribute)));
+    }
+
+    // Clients owned by the user itself, as counted by its quota. Package-private for the scale benchmarks.
+    long countOwnedClients() {
+        if (factory.isOwnershipIndexReady()) {
+            return new OwnershipIndex(session).countClients(realm, auth.getUser().getId());
+        }
+        return searchClientsByOwnerAttribute(session, realm, getUserManageClientAttributeName(auth.getUser())).count();
     }
 
-    // based on org.keycloak.services.resources.admin (org/keycloak/services/resources/admin/ClientsResource.java)
     @POST
     @Path("clients")
     @Consumes(MediaType.APPLICATION_JSON)
     @APIResponse(responseCode = "200", description = "Created")
     public SelfServiceClientRepresentation create(final SelfServiceClientWritableRepresentation clientWritableRep) {
-        // check if user has already more than allowed clients
-        if (this.getClients().count() >= MAX_CLIENTS_PER_USER) {
-            throw new ForbiddenException(String.format("You reached you maximum number of %d allowed self service clients!",
-                    MAX_CLIENTS_PER_USER));
-        }
+        return RequestMetrics.get(session).endpoint("create", () -> createClient(clientWritableRep));
+    }
 
-        ClientRepresentation rep = clientWritableRep.toClientRepresentation();
+    private SelfServiceClientRepresentation createClient(final SelfServiceClientWritableRepresentation clientWritableRep) {
+        final SelfServiceClientOperations operations = new SelfServiceClientOperations(session, realm, auth, adminAuth,
+                factory);
+        operations.checkCreate(clientWritableRep);
 
-        // add permission flag for creating user
-        final Map<String, String> authClientAttributes = getUserManageClientAttributeMap(auth.getUser());
-        final var currentAttributes = rep.getAttributes();
-        currentAttributes.putAll(authClientAttributes);
-        rep.setAttributes(currentAttributes);
+        // check if user has already more than allowed clients. This locks the quota of the user until the client
+        // is persisted, so parallel requests cannot exceed it.
+        checkQuota(1);
 
-        try {
-            session.clientPolicy().triggerOnEvent(new AdminClientRegisterContext(rep, adminAuth.adminAuth()));
+        ClientModel clientModel = operations.create(clientWritableRep);
 
-            // persist new client
-            ClientModel clientModel = ClientManager.createClient(session, realm, rep);
+        return new SelfServiceClientRepresentation(clientModel, session);
+    }
+
+    // Runs many create, update and delete operations within the transaction of this request. Authorization and the
+    // quota check are done once for the whole batch, client policies and validation per operation as for the single
+    // client endpoints.
+    @POST
+    @Path("clients:batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response batch(final SelfServiceBatchRequest batchRequest) {
+        return RequestMetrics.get(session).endpoint("batch", () -> runBatch(batchRequest));
+    }
 
-            // we do not allow enabling service accounts
+    private Response runBatch(final SelfServiceBatchRequest batchRequest) {
+        if (batchRequest == null || batchRequest.operations == null || batchRequest.operations.isEmpty()
+                || batchRequest.operations.size() > MAX_BATCH_SIZE) {
+            throw new BadRequestException(String.format("A batch must contain between 1 and %d operations", MAX_BATCH_SIZE));
+        }
+        final boolean atomic;
+        if (batchRequest.mode == null || batchRequest.mode.equals(BATCH_MODE_ATOMIC)) {
+            atomic = true;
+        } else if (batchRequest.mode.equals(BATCH_MODE_BEST_EFFORT)) {
+            atomic = false;
+        } else {
+            throw new BadRequestException(String.format("Unknown batch mode %s", batchRequest.mode));
+        }
+        for (SelfServiceBatchRequest.Operation operation : batchRequest.operations) {
+            checkBatchOperation(operation);
+        }
 
-            adminEvent.operation(OperationType.CREATE).resourcePath(session.getContext().getUri(),
-                    clientModel.getId()).representation(rep).success();
+        // the request itself took one token already, every further operation takes another one
+        if (batchRequest.operations.size() > 1) {
+            factory.getRateLimiter().acquire(RequestMetrics.get(session), realm.getId(), auth.getUser().getId(),
+                    RateLimiter.Kind.WRITE, batchRequest.operations.size() - 1);
+        }
+
+        // In atomic mode, either all deletes happen or none, so deleted clients owned by the user itself make room for
+        // created ones. Clients the user only manages via a group do not count for its quota, so deleting them does not
+        // make room. Without a net increase, the quota is not checked at all, so users above a lowered limit can still
+        // replace their own clients.
+        final long creates = batchRequest.operations.stream().filter(operation -> operation.op.equals("create")).count();
+        final long addedClients = atomic ? creates - countOwnedDeletes(batchRequest) : creates;
+        if (addedClients > 0) {
+            checkQuota((int) addedClients);
+        }
+
+        final SelfServiceClientOperations operations = new SelfServiceClientOperations(session, realm, auth, adminAuth,
+                factory);
+        operations.deferAdminEvents();
+        final List<SelfServiceBatchResult.Item> results = new ArrayList<>();
+        SelfServiceBatchResult.Item failed = null;
+        for (int index = 0; index < batchRequest.operations.size() && failed == null; index++) {
+            final SelfServiceBatchRequest.Operation operation = batchRequest.operations.get(index);
+            SelfServiceBatchResult.Item result;
+            try {
+                result = executeBatchOperation(index, operation, operations);
+            } catch (WebApplicationException exc) {
+                result = toBatchError(index, operation.op, exc);
+                // once something has been written, a failure cannot be undone without rolling back everything
+                if (atomic || session.getTransactionManager().getRollbackOnly()) {
+                    failed = result;
+                }
+            }
+            results.add(result);
+        }
+
+        if (failed == null) {
+            operations.sendAdminEvents();
+            return Response.ok(new SelfServiceBatchResult(true, results)).build();
+        }
+
+        session.getTransactionManager().setRollbackOnly();
+        for (SelfServiceBatchResult.Item result : results) {
+            if (result != failed && result.error == null) {
+                result.status = FAILED_DEPENDENCY;
+                result.error = "rolled_back";
+                result.etag = null;
+                result.client = null;
+                if (result.op.equals("create")) {
+                    result.id = null;
+                }
+            }
+        }
+        for (int index = results.size(); index < batchRequest.operations.size(); index++) {
+            final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(index,
+                    batchRequest.operations.get(index).op, FAILED_DEPENDENCY);
+            result.error = "not_executed";
+            results.add(result);
+        }
+        return Response.status(failed.status).entity(new SelfServiceBatchResult(false, results)).build();
+    }
 
-            // we do not allow enabling authorization services
+    // Distinct clients deleted by the batch, which are counted by the quota of the user (see countOwnedClients)
+    private long countOwnedDeletes(SelfServiceBatchRequest batchRequest) {
+        final String attribute = getUserManageClientAttributeName(auth.getUser());
+        return batchRequest.operations.stream()
+                .filter(operation -> operation.op.equals("delete"))
+                .map(operation -> operation.id)
+                .distinct()
+                .map(realm::getClientById)
+                .filter(Objects::nonNull)
+                .filter(model -> CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE.equals(model.getAttribute(attribute)))
+                .count();
+    }
 
-            ValidationUtil.validateClient(session, clientModel, true, r -> {
-                session.getTransactionManager().setRollbackOnly();
-                throw new ErrorResponseException(
-                        Errors.INVALID_INPUT,
-                        r.getAllLocalizedErrorsAsString(AdminRoot.getMessages(session, realm,
-                                adminAuth.adminAuth().getToken().getLocale())),
-                        Response.Status.BAD_REQUEST);
+    private void checkQuota(int additionalClients) {
+        final RequestMetrics metrics = RequestMetrics.get(session);
+        try {
+            metrics.time("quota", () -> {
+                final int limit = ClientQuota.getLimit(factory.getRealmActivation(session, realm), auth.getUser());
+                new ClientQuota(session).checkQuota(realm, auth.getUser(), limit, additionalClients, this::countOwnedClients);
             });
+        } catch (ForbiddenException exc) {
+            metrics.rejected("quota");
+            throw exc;
+        }
+    }
+
+    // Malformed operations reject the whole batch before anything is executed
+    private static void checkBatchOperation(SelfServiceBatchRequest.Operation operation) {
+        if (operation == null || operation.op == null) {
+            throw new BadRequestException("Each operation must specify op");
+        }
+        switch (operation.op) {
+            case "create" -> {
+                if (operation.client == null) {
+                    throw new BadRequestException("Create operations require a client");
+                }
+            }
+            case "update" -> {
+                if (operation.id == null || operation.client == null) {
+                    throw new BadRequestException("Update operations require an id and a client");
+                }
+            }
+            case "delete" -> {
+                if (operation.id == null) {
+                    throw new BadRequestException("Delete operations require an id");
+                }
+            }
+            default -> throw new BadRequestException(String.format("Unknown operation %s", operation.op));
+        }
+    }
+
+    private SelfServiceBatchResult.Item executeBatchOperation(int index, SelfServiceBatchRequest.Operation operation,
+                                                              SelfServiceClientOperations operations) {
+        if (operation.op.equals("create")) {
+            final ClientModel clientModel = operations.create(operation.client);
+            final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(index, operation.op,
+                    Response.Status.CREATED.getStatusCode());
+            result.id = clientModel.getId();
+            result.etag = ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS).getValue();
+            result.client = new SelfServiceClientRepresentation(clientModel, session);
+            return result;
+        }
 
-            // used for e.g. logging
-            session.getContext().setClient(clientModel);
-            session.clientPolicy().triggerOnEvent(new AdminClientRegisteredContext(clientModel, adminAuth.adminAuth()));
+        final ClientModel clientModel = getAccessibleClient(operation.id);
+        session.getContext().setClient(clientModel);
+        if (operation.ifMatch != null) {
+            ClientETag.checkIfMatch(List.of(operation.ifMatch),
+                    ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS));
+        }
 
-            return new SelfServiceClientRepresentation(ModelToRepresentation.toRepresentation(clientModel, session));
-        } catch (ModelDuplicateException e) {
-            throw ErrorResponse.exists("Client " + rep.getClientId() + " already exists");
-        } catch (ClientPolicyException cpe) {
-            throw new ErrorResponseException(cpe.getError(), cpe.getErrorDetail(), Response.Status.BAD_REQUEST);
+        final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(index, operation.op,
+                Response.Status.NO_CONTENT.getStatusCode());
+        result.id = operation.id;
+        if (operation.op.equals("update")) {
+            operations.update(clientModel, operation.client);
+            result.etag = ClientETag.of(clientModel, session, SelfServiceClientRepresentation.FIELDS).getValue();
+        } else {
+            operations.delete(clientModel);
         }
+        return result;
+    }
+
+    static SelfServiceBatchResult.Item toBatchError(int index, String op, WebApplicationException exc) {
+        final SelfServiceBatchResult.Item result = new SelfServiceBatchResult.Item(index, op, exc.getResponse().getStatus());
+        final Object entity = exc.getResponse().getEntity();
+        if (entity instanceof OAuth2ErrorRepresentation oauthError) {
+            result.error = oauthError.getError();
+            result.errorDescription = oauthError.getErrorDescription();
+        } else if (entity instanceof ErrorRepresentation error) {
+            result.error = error.getErrorMessage();
+        } else {
+            result.error = exc.getMessage();
+        }
+        return result;
     }
 
     @Path("clients/{client-uuid}")
     public SelfServiceClientResources get(@PathParam("client-uuid") final String clientId) {
+        ClientModel clientModel = getAccessibleClient(clientId);
+
+        session.getContext().setClient(clientModel);
+
+        return new SelfServiceClientResources(session, realm, auth, adminAuth, adminEvent, clientModel, factory);
+    }
+
+    private ClientModel getAccessibleClient(String clientId) {
         ClientModel clientModel = realm.getClientById(clientId);
         if (clientModel == null) {
             throw new NotFoundException("Could not find client");
         }
 
-        // check whether the user has access to the client
-        if (!hasUserAccessToClient(clientModel, auth.getUser())) {
+        // check whether the user or one of its groups has access to the client
+        if (!ClientOwners.of(session, auth.getUser()).hasAccess(clientModel)) {
             throw new ForbiddenException("You do not have access to this client!");
         }
-
-        session.getContext().setClient(clientModel);
-
-        return new SelfServiceClientResources(session, realm, auth, adminAuth, adminEvent, clientModel);
+        return clientModel;
     }
 }
@@ -0,0 +1,52 @@
+package de.mixxplorer.keycloak.ssc.rest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+// Writes responses element by element while the stream is consumed, instead of buffering the whole response.
+// Elements already serialized (see ClientRepresentationCache) are written as they are.
+public class StreamingJson {
+    public static final String NDJSON = "application/x-ndjson";
+
+    public static StreamingOutput array(Stream<?> elements) {
+        return output -> {
+            try (JsonGenerator generator = JsonSerialization.mapper.getFactory().createGenerator(output);
+                 Stream<?> closingElements = elements) {
+                generator.writeStartArray();
+                for (Iterator<?> it = closingElements.iterator(); it.hasNext(); ) {
+                    write(generator, it.next());
+                }
+                generator.writeEndArray();
+            }
+        };
+    }
+
+    // newline delimited JSON, see https://github.com/ndjson/ndjson-spec
+    public static StreamingOutput ndjson(Stream<?> elements) {
+        return output -> {
+            try (JsonGenerator generator = JsonSerialization.mapper.getFactory().createGenerator(output);
+                 Stream<?> closingElements = elements) {
+                // Jackson separates root values by a space, which would start every line after the first one
+                generator.setRootValueSeparator(null);
+                for (Iterator<?> it = closingElements.iterator(); it.hasNext(); ) {
+                    write(generator, it.next());
+                    generator.writeRaw('\n');
+                }
+            }
+        };
+    }
+
+    private static void write(JsonGenerator generator, Object element) throws IOException {
+        if (element instanceof SerializableString json) {
+            generator.writeRawValue(json);
+        } else {
+            JsonSerialization.mapper.writeValue(generator, element);
+        }
+    }
+}
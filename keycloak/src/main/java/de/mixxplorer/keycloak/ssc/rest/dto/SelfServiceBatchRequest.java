@@ -0,0 +1,21 @@
+package de.mixxplorer.keycloak.ssc.rest.dto;
+
+import java.util.List;
+
+public class SelfServiceBatchRequest {
+    // atomic: the first failing operation rolls back the whole batch
+    // bestEffort: failing operations are skipped, as long as they did not write anything yet
+    public String mode;
+    public List<Operation> operations;
+
+    public static class Operation {
+        // create, update or delete
+        public String op;
+        // UUID of the client, required for update and delete
+        public String id;
+        // same as the If-Match header of the single client endpoints
+        public String ifMatch;
+        // required for create and update
+        public SelfServiceClientWritableRepresentation client;
+    }
+}
@@ -0,0 +1,37 @@
+package de.mixxplorer.keycloak.ssc.rest.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SelfServiceBatchResult {
+    public boolean committed;
+    public List<Item> results;
+
+    public SelfServiceBatchResult(boolean committed, List<Item> results) {
+        this.committed = committed;
+        this.results = results;
+    }
+
+    // Result of a single operation, in the order of the request. The status corresponds to the HTTP status the
+    // single client endpoint would have returned.
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Item {
+        public int index;
+        public String op;
+        public int status;
+        public String id;
+        public String etag;
+        public String error;
+        public String errorDescription;
+        // only set for created clients, as it contains the generated secret
+        public SelfServiceClientRepresentation client;
+
+        public Item(int index, String op, int status) {
+            this.index = index;
+            this.op = op;
+            this.status = status;
+        }
+    }
+}
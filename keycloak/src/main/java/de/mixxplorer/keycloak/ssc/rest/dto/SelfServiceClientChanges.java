@@ -0,0 +1,36 @@
+package de.mixxplorer.keycloak.ssc.rest.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SelfServiceClientChanges {
+    // to be passed as since parameter on the next poll
+    public String token;
+    // If true, the changes contain all clients, e.g. because the passed token expired. Clients known to the caller,
+    // but not contained, have been deleted.
+    public boolean resync;
+    public List<Change> changes;
+
+    public SelfServiceClientChanges(String token, boolean resync, List<Change> changes) {
+        this.token = token;
+        this.resync = resync;
+        this.changes = changes;
+    }
+
+    // Current state of a changed client. Deleted clients, and clients the caller lost access to, are tombstones
+    // without a client.
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Change {
+        public String id;
+        public boolean deleted;
+        public SelfServiceClientRepresentation client;
+
+        public Change(String id, boolean deleted, SelfServiceClientRepresentation client) {
+            this.id = id;
+            this.deleted = deleted;
+            this.client = client;
+        }
+    }
+}
@@ -1,12 +1,41 @@
 package de.mixxplorer.keycloak.ssc.rest.dto;
 
-import org.keycloak.representations.idm.ClientRepresentation;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import de.mixxplorer.keycloak.ssc.Util;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsage;
+import de.mixxplorer.keycloak.ssc.usage.ClientUsageStore;
+import jakarta.ws.rs.BadRequestException;
+import org.keycloak.authorization.AuthorizationProvider;
+import org.keycloak.common.Profile;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import static org.keycloak.models.Constants.CFG_DELIMITER;
+
+// All fields are serialized, including null ones, unless the fields query parameter narrows the selection (see Partial)
+@JsonInclude(JsonInclude.Include.ALWAYS)
 public class SelfServiceClientRepresentation extends SelfServiceClientWritableRepresentation {
+    // all fields, which can be selected via the fields query parameter
+    public static final Set<String> FIELDS = Set.of("id", "clientId", "name", "description", "rootUrl", "baseUrl",
+            "enabled", "redirectUris", "webOrigins", "publicClient", "frontchannelLogout",
+            "backchannelLogoutRevokeOfflineTokens", "backchannelLogoutSessionRequired", "backchannelLogoutUrl",
+            "frontchannelLogoutUrl", "postLogoutRedirectUris", "secret", "standardFlowEnabled", "implicitFlowEnabled",
+            "directAccessGrantsEnabled", "serviceAccountsEnabled", "authorizationServicesEnabled", "ownerGroups");
+    // usage statistics, which are only returned if selected explicitly, as they change with every login
+    public static final Set<String> USAGE_FIELDS = Set.of("lastUsed", "loginsLast30Days");
+    // fields of SelfServiceClientWritableRepresentation
+    public static final Set<String> WRITABLE_FIELDS = Set.of("clientId", "name", "description", "rootUrl", "baseUrl",
+            "enabled", "redirectUris", "webOrigins", "publicClient", "frontchannelLogout",
+            "backchannelLogoutRevokeOfflineTokens", "backchannelLogoutSessionRequired", "backchannelLogoutUrl",
+            "frontchannelLogoutUrl", "postLogoutRedirectUris", "ownerGroups");
+
     public String id;
 
     public String secret;
@@ -17,49 +46,182 @@ public class SelfServiceClientRepresentation extends SelfServiceClientWritableRe
     public Boolean serviceAccountsEnabled;
     public Boolean authorizationServicesEnabled;
 
-    public SelfServiceClientRepresentation(ClientRepresentation clientRepresentation) {
-        this.id = clientRepresentation.getId();
-
-        this.clientId = clientRepresentation.getClientId();
-        this.name = clientRepresentation.getName();
-        this.description = clientRepresentation.getDescription();
-        this.rootUrl = clientRepresentation.getRootUrl();
-        this.baseUrl = clientRepresentation.getBaseUrl();
-        this.enabled = clientRepresentation.isEnabled();
-        this.redirectUris = clientRepresentation.getRedirectUris();
-        ;
-        this.webOrigins = clientRepresentation.getWebOrigins();
-
-        this.publicClient = clientRepresentation.isPublicClient();
-        this.frontchannelLogout = clientRepresentation.isFrontchannelLogout();
-
-        Map<String, String> attrs = clientRepresentation.getAttributes();
-        this.backchannelLogoutRevokeOfflineTokens = attrs.get("backchannel.logout.revoke.offline.tokens") != null
-                && attrs.get("backchannel.logout.revoke.offline.tokens").equals("true");
-        this.backchannelLogoutSessionRequired = attrs.get("backchannel.logout.session.required") != null
-                && attrs.get("backchannel.logout.session.required").equals("true");
-        this.backchannelLogoutUrl = attrs.get("backchannel.logout.url");
-        if (this.backchannelLogoutUrl == null) {
-            this.backchannelLogoutUrl = "";
-        }
-        this.frontchannelLogoutUrl = attrs.get("frontchannel.logout.url");
-        if (this.frontchannelLogoutUrl == null) {
-            this.frontchannelLogoutUrl = "";
-        }
-        if (attrs.get("post.logout.redirect.uris") != null) {
-            this.postLogoutRedirectUris = Arrays.stream(attrs.get("post.logout.redirect.uris").split("##")).toList();
-        } else {
-            this.postLogoutRedirectUris = new ArrayList<>();
-        }
-
-        this.id = clientRepresentation.getId();
-
-        this.secret = clientRepresentation.getSecret();
-
-        this.standardFlowEnabled = clientRepresentation.isStandardFlowEnabled();
-        this.implicitFlowEnabled = clientRepresentation.isImplicitFlowEnabled();
-        this.directAccessGrantsEnabled = clientRepresentation.isDirectAccessGrantsEnabled();
-        this.serviceAccountsEnabled = clientRepresentation.isServiceAccountsEnabled();
-        this.authorizationServicesEnabled = clientRepresentation.getAuthorizationServicesEnabled();
+    // time in milliseconds, null if the client has not been used yet. Both are only serialized if selected.
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long lastUsed;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Long loginsLast30Days;
+
+    // Reads the exposed values directly from the model. In contrast to ModelToRepresentation.toRepresentation, this
+    // does not load protocol mappers, client scopes and the like, which would be thrown away anyway.
+    // The authorization services flag is the only one requiring another lookup.
+    public SelfServiceClientRepresentation(ClientModel clientModel, KeycloakSession session, Set<String> fields) {
+        this.id = clientModel.getId();
+
+        if (fields.contains("clientId")) {
+            this.clientId = clientModel.getClientId();
+        }
+        if (fields.contains("name")) {
+            this.name = clientModel.getName();
+        }
+        if (fields.contains("description")) {
+            this.description = clientModel.getDescription();
+        }
+        if (fields.contains("rootUrl")) {
+            this.rootUrl = clientModel.getRootUrl();
+        }
+        if (fields.contains("baseUrl")) {
+            this.baseUrl = clientModel.getBaseUrl();
+        }
+        if (fields.contains("enabled")) {
+            this.enabled = clientModel.isEnabled();
+        }
+        if (fields.contains("redirectUris")) {
+            this.redirectUris = new ArrayList<>(clientModel.getRedirectUris());
+        }
+        if (fields.contains("webOrigins")) {
+            this.webOrigins = new ArrayList<>(clientModel.getWebOrigins());
+        }
+
+        if (fields.contains("publicClient")) {
+            this.publicClient = clientModel.isPublicClient();
+        }
+        if (fields.contains("frontchannelLogout")) {
+            this.frontchannelLogout = clientModel.isFrontchannelLogout();
+        }
+
+        if (fields.contains("backchannelLogoutRevokeOfflineTokens")) {
+            this.backchannelLogoutRevokeOfflineTokens = "true".equals(
+                    clientModel.getAttribute("backchannel.logout.revoke.offline.tokens"));
+        }
+        if (fields.contains("backchannelLogoutSessionRequired")) {
+            this.backchannelLogoutSessionRequired = "true".equals(
+                    clientModel.getAttribute("backchannel.logout.session.required"));
+        }
+        if (fields.contains("backchannelLogoutUrl")) {
+            this.backchannelLogoutUrl = clientModel.getAttribute("backchannel.logout.url");
+            if (this.backchannelLogoutUrl == null) {
+                this.backchannelLogoutUrl = "";
+            }
+        }
+        if (fields.contains("frontchannelLogoutUrl")) {
+            this.frontchannelLogoutUrl = clientModel.getAttribute("frontchannel.logout.url");
+            if (this.frontchannelLogoutUrl == null) {
+                this.frontchannelLogoutUrl = "";
+            }
+        }
+        if (fields.contains("postLogoutRedirectUris")) {
+            final String postLogoutRedirectUris = clientModel.getAttribute("post.logout.redirect.uris");
+            if (postLogoutRedirectUris != null) {
+                this.postLogoutRedirectUris = splitMultivalued(postLogoutRedirectUris);
+            } else {
+                this.postLogoutRedirectUris = new ArrayList<>();
+            }
+        }
+
+        // same as ModelToRepresentation: there is no secret for public and bearer only clients
+        if (fields.contains("secret") && !clientModel.isPublicClient() && !clientModel.isBearerOnly()) {
+            this.secret = clientModel.getSecret();
+        }
+
+        if (fields.contains("standardFlowEnabled")) {
+            this.standardFlowEnabled = clientModel.isStandardFlowEnabled();
+        }
+        if (fields.contains("implicitFlowEnabled")) {
+            this.implicitFlowEnabled = clientModel.isImplicitFlowEnabled();
+        }
+        if (fields.contains("directAccessGrantsEnabled")) {
+            this.directAccessGrantsEnabled = clientModel.isDirectAccessGrantsEnabled();
+        }
+        if (fields.contains("serviceAccountsEnabled")) {
+            this.serviceAccountsEnabled = clientModel.isServiceAccountsEnabled();
+        }
+        if (fields.contains("authorizationServicesEnabled")) {
+            this.authorizationServicesEnabled = isAuthorizationServicesEnabled(clientModel, session);
+        }
+        if (fields.contains("ownerGroups")) {
+            this.ownerGroups = Util.getClientOwnerGroupIds(clientModel).stream().sorted().toList();
+        }
+
+        if (fields.contains("lastUsed") || fields.contains("loginsLast30Days")) {
+            final ClientUsage usage = ClientUsageStore.get(session, clientModel, Time.currentTimeMillis());
+            if (fields.contains("lastUsed") && usage.lastUsed() > 0) {
+                this.lastUsed = usage.lastUsed();
+            }
+            if (fields.contains("loginsLast30Days")) {
+                this.loginsLast30Days = usage.logins();
+            }
+        }
+    }
+
+    public SelfServiceClientRepresentation(ClientModel clientModel, KeycloakSession session) {
+        this(clientModel, session, FIELDS);
+    }
+
+    // Omits the fields, which are not selected, only if the selection is narrower than the default one
+    public static SelfServiceClientRepresentation of(ClientModel clientModel, KeycloakSession session, Set<String> fields) {
+        return fields.containsAll(FIELDS) ? new SelfServiceClientRepresentation(clientModel, session, fields)
+                : new Partial(clientModel, session, fields);
+    }
+
+    /**
+     * Parses the fields query parameter.
+     *
+     * @param fields comma separated list of field names, all fields except the usage fields if null or empty
+     * @return selected fields
+     * @throws BadRequestException if an unknown field is requested
+     */
+    public static Set<String> parseFields(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return FIELDS;
+        }
+
+        final List<String> requested = Arrays.stream(fields.split(",")).map(String::trim).toList();
+        for (String field : requested) {
+            if (!FIELDS.contains(field) && !USAGE_FIELDS.contains(field)) {
+                throw new BadRequestException("Unknown field " + field);
+            }
+        }
+        return new HashSet<>(requested);
+    }
+
+    // Same as value.split("##"), but String.split compiles a regular expression for each call with a delimiter longer
+    // than one character.
+    static List<String> splitMultivalued(String value) {
+        int end = value.indexOf(CFG_DELIMITER);
+        if (end < 0) {
+            return List.of(value);
+        }
+
+        final List<String> values = new ArrayList<>();
+        int start = 0;
+        while (end >= 0) {
+            values.add(value.substring(start, end));
+            start = end + CFG_DELIMITER.length();
+            end = value.indexOf(CFG_DELIMITER, start);
+        }
+        values.add(value.substring(start));
+
+        // split removes trailing empty strings
+        while (!values.isEmpty() && values.get(values.size() - 1).isEmpty()) {
+            values.remove(values.size() - 1);
+        }
+        return values;
+    }
+
+    public static Boolean isAuthorizationServicesEnabled(ClientModel clientModel, KeycloakSession session) {
+        if (!Profile.isFeatureEnabled(Profile.Feature.AUTHORIZATION)) {
+            return null;
+        }
+        final AuthorizationProvider authorization = session.getProvider(AuthorizationProvider.class);
+        return authorization.getStoreFactory().getResourceServerStore().findByClient(clientModel) != null ? true : null;
+    }
+
+    // Fields, which are not selected, are null and therefore omitted
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class Partial extends SelfServiceClientRepresentation {
+        public Partial(ClientModel clientModel, KeycloakSession session, Set<String> fields) {
+            super(clientModel, session, fields);
+        }
     }
 }
@@ -1,15 +1,56 @@
 package de.mixxplorer.keycloak.ssc.rest.dto;
 
+import de.mixxplorer.keycloak.ssc.realm.UrlAllowList;
 import jakarta.ws.rs.BadRequestException;
 import org.keycloak.representations.idm.ClientRepresentation;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 // see ClientRepresentation for all options
 public class SelfServiceClientWritableRepresentation {
+    // Column sizes of the client tables, longer values would only fail when flushing
+    private static final int MAX_VALUE_LENGTH = 255;
+    // URLs stored as client attributes
+    private static final int MAX_ATTRIBUTE_URL_LENGTH = 2048;
+    private static final int MAX_URIS = 100;
+    private static final int MAX_OWNER_GROUPS = 50;
+    private static final Set<String> FORBIDDEN_SCHEMES = Set.of("javascript", "data", "vbscript");
+    // Keycloak placeholders like ${authBaseUrl}, which are resolved by Keycloak and followed by a relative URL
+    private static final Pattern PLACEHOLDER = Pattern.compile("^\\$\\{[A-Za-z]+}");
+
+    // How a URL is used, which determines the allowed forms. Absolute URLs have to use http or https, unless noted.
+    private enum UrlKind {
+        ABSOLUTE(false, false, Set.of()),
+        // or a path relative to the root URL
+        WEB(true, false, Set.of()),
+        // Custom schemes (e.g. of native apps) and a trailing wildcard are allowed, fragments are not. A single * allows
+        // all URLs.
+        REDIRECT(true, true, Set.of("*")),
+        // + uses the redirect URIs
+        POST_LOGOUT_REDIRECT(true, true, Set.of("*", "+")),
+        // + allows the origins of the redirect URIs, * all origins
+        ORIGIN(false, false, Set.of("*", "+"));
+
+        final boolean relative;
+        final boolean redirect;
+        final Set<String> keywords;
+
+        UrlKind(boolean relative, boolean redirect, Set<String> keywords) {
+            this.relative = relative;
+            this.redirect = redirect;
+            this.keywords = keywords;
+        }
+    }
+
     public String clientId;
     public String name;
     public String description;
@@ -29,16 +70,124 @@ public class SelfServiceClientWritableRepresentation {
     public String frontchannelLogoutUrl;
     public List<String> postLogoutRedirectUris;
 
-    // Validate passed values before creating an official ClientRepresentation
-    void validatePlainValues() {
+    // IDs of groups whose members can manage the client as well, not part of the client representation
+    public List<String> ownerGroups;
+
+    /**
+     * Validates the values before creating an official ClientRepresentation, so invalid requests are rejected before
+     * anything gets written. Keycloak validates the client again after writing it.
+     *
+     * @param allowedUrls URLs allowed within the realm, UrlAllowList.ALLOW_ALL if not restricted
+     * @throws BadRequestException if a value is invalid
+     */
+    public void validate(UrlAllowList allowedUrls) {
+        if (this.clientId == null || this.clientId.isBlank()) {
+            throw new BadRequestException("Client ID is required");
+        }
         if (!this.clientId.startsWith("ssc-")) {
             throw new BadRequestException("Client ID must start with 'ssc-'");
         }
+        validateLength("Client ID", this.clientId, MAX_VALUE_LENGTH);
+        validateLength("Name", this.name, MAX_VALUE_LENGTH);
+        validateLength("Description", this.description, MAX_VALUE_LENGTH);
+        validateSize("Owner groups", this.ownerGroups, MAX_OWNER_GROUPS);
+
+        validateUrl(allowedUrls, "Root URL", this.rootUrl, UrlKind.ABSOLUTE, MAX_VALUE_LENGTH);
+        validateUrl(allowedUrls, "Base URL", this.baseUrl, UrlKind.WEB, MAX_VALUE_LENGTH);
+        validateUrls(allowedUrls, "Redirect URI", this.redirectUris, UrlKind.REDIRECT, MAX_VALUE_LENGTH);
+        validateUrls(allowedUrls, "Web origin", this.webOrigins, UrlKind.ORIGIN, MAX_VALUE_LENGTH);
+        validateUrl(allowedUrls, "Backchannel logout URL", this.backchannelLogoutUrl, UrlKind.WEB, MAX_ATTRIBUTE_URL_LENGTH);
+        validateUrl(allowedUrls, "Frontchannel logout URL", this.frontchannelLogoutUrl, UrlKind.WEB, MAX_ATTRIBUTE_URL_LENGTH);
+        validateUrls(allowedUrls, "Post logout redirect URI", this.postLogoutRedirectUris, UrlKind.POST_LOGOUT_REDIRECT,
+                MAX_ATTRIBUTE_URL_LENGTH);
     }
 
-    public ClientRepresentation toClientRepresentation() {
-        this.validatePlainValues();
+    private static void validateLength(String name, String value, int max) {
+        if (value != null && value.length() > max) {
+            throw new BadRequestException(String.format("%s must not be longer than %d characters", name, max));
+        }
+    }
 
+    private static void validateSize(String name, List<String> values, int max) {
+        if (values != null && values.size() > max) {
+            throw new BadRequestException(String.format("At most %d %s are allowed", max, name));
+        }
+    }
+
+    private static void validateUrls(UrlAllowList allowedUrls, String name, List<String> urls, UrlKind kind, int maxLength) {
+        if (urls != null) {
+            validateSize(name + "s", urls, MAX_URIS);
+            for (String url : urls) {
+                if (url == null || url.isBlank()) {
+                    throw new BadRequestException(String.format("%s must not be empty", name));
+                }
+                // the post logout redirect URIs are stored joined by ##
+                if (url.contains("##")) {
+                    throw new BadRequestException(String.format("%s '%s' must not contain '##'", name, url));
+                }
+                if (!kind.keywords.contains(url)) {
+                    validateUrl(allowedUrls, name, url, kind, maxLength);
+                } else if (!allowedUrls.isAllowed(url)) {
+                    // keywords are no URLs, but "*" allows any URL and is therefore rejected by restricted realms
+                    throw new BadRequestException(String.format("%s '%s' is not allowed in this realm", name, url));
+                }
+            }
+        }
+    }
+
+    private static void validateUrl(UrlAllowList allowedUrls, String name, String url, UrlKind kind, int maxLength) {
+        if (url == null || url.isEmpty()) {
+            return;
+        }
+        validateLength(name, url, maxLength);
+        validateSyntax(name, url, kind);
+        if (!allowedUrls.isAllowed(url)) {
+            throw new BadRequestException(String.format("%s '%s' is not allowed in this realm", name, url));
+        }
+    }
+
+    private static void validateSyntax(String name, String url, UrlKind kind) {
+        final Matcher placeholder = PLACEHOLDER.matcher(url);
+        final boolean resolved = placeholder.find();
+        final URI uri;
+        try {
+            uri = new URI(resolved ? url.substring(placeholder.end()) : url);
+        } catch (URISyntaxException exc) {
+            throw new BadRequestException(String.format("%s '%s' is not a valid URL", name, url));
+        }
+
+        // wildcards are only supported at the end of redirect URIs
+        final int wildcard = url.indexOf('*');
+        if (wildcard >= 0 && (!kind.redirect || wildcard != url.length() - 1)) {
+            throw new BadRequestException(String.format("%s '%s' may only contain a wildcard at its end", name, url));
+        }
+        if (kind.redirect && uri.getRawFragment() != null) {
+            throw new BadRequestException(String.format("%s '%s' must not contain a fragment", name, url));
+        }
+
+        if (!uri.isAbsolute()) {
+            // placeholders resolve to absolute URLs, others are relative to the root URL
+            final boolean relative = uri.getRawAuthority() == null && url.startsWith("/");
+            if (!resolved && (!relative || !kind.relative)) {
+                throw new BadRequestException(String.format("%s '%s' must be an absolute URL", name, url));
+            }
+            return;
+        }
+        final String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        final boolean web = scheme.equals("http") || scheme.equals("https");
+        if (FORBIDDEN_SCHEMES.contains(scheme)) {
+            throw new BadRequestException(String.format("%s '%s' must not use the scheme %s", name, url, scheme));
+        }
+        if (!web && !kind.redirect) {
+            throw new BadRequestException(String.format("%s '%s' must use http or https", name, url));
+        }
+        if (web && (uri.getHost() == null || uri.getRawUserInfo() != null)) {
+            throw new BadRequestException(String.format("%s '%s' must contain a valid host", name, url));
+        }
+    }
+
+    // Converts the values into a client representation, they have to be validated before
+    public ClientRepresentation toClientRepresentation() {
         ClientRepresentation clientRepresentation = new ClientRepresentation();
         clientRepresentation.setClientId(this.clientId);
         clientRepresentation.setName(this.name);
@@ -47,7 +196,6 @@ public class SelfServiceClientWritableRepresentation {
         clientRepresentation.setBaseUrl(this.baseUrl);
         clientRepresentation.setEnabled(this.enabled);
         clientRepresentation.setRedirectUris(this.redirectUris);
-        ;
         clientRepresentation.setWebOrigins(this.webOrigins);
 
         clientRepresentation.setPublicClient(this.publicClient);
@@ -0,0 +1,37 @@
+package de.mixxplorer.keycloak.ssc.rotation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Progress of the secret rotation on this node. Written by the rotation task only, read by the admin endpoint.
+public class SecretRotationStatus {
+    private volatile boolean running = false;
+    private volatile Long lastRunStarted;
+    private volatile Long lastRunFinished;
+    private final Map<String, RealmProgress> realms = new ConcurrentHashMap<>();
+
+    void started(long now) {
+        running = true;
+        lastRunStarted = now;
+        realms.clear();
+    }
+
+    void finished(long now) {
+        running = false;
+        lastRunFinished = now;
+    }
+
+    void progress(String realmId, RealmProgress progress) {
+        realms.put(realmId, progress);
+    }
+
+    public Realm getRealm(String realmId) {
+        return new Realm(running, lastRunStarted, lastRunFinished, realms.getOrDefault(realmId, new RealmProgress(0, 0, 0)));
+    }
+
+    // timestamps are in milliseconds, null if the rotation did not run on this node yet
+    public record Realm(boolean running, Long lastRunStarted, Long lastRunFinished, RealmProgress lastRun) {}
+
+    // clients checked, rotated and failed to rotate within a realm
+    public record RealmProgress(long checked, long rotated, long failed) {}
+}
@@ -0,0 +1,239 @@
+package de.mixxplorer.keycloak.ssc.rotation;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import de.mixxplorer.keycloak.ssc.changes.ClientChangeLog;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.ClientSecretConstants;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.entities.ClientEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.protocol.oidc.OIDCClientSecretConfigWrapper;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+import static de.mixxplorer.keycloak.ssc.Constants.REALM_SECRET_ROTATION_SINCE_ATTRIBUTE;
+
+// Rotates the secrets of confidential self service clients once per rotation period. The previous secret stays valid
+// for the grace period, so applications can pick up the new one without downtime.
+// Runs via ClusterAwareScheduledTaskRunner, so only one cluster node runs it per check interval. The clients of a realm
+// are read in batches ordered by their UUID (keyset pagination), each batch is rotated in its own transaction.
+// Whether a client is due is decided again after locking its row, so a client is never rotated twice, even if runs
+// overlap.
+// To spread the rotations over the rotation window, every client is due a bit before the end of its period, by an offset
+// derived from its UUID. Clients without a known secret creation time are spread over the first period after the rotation
+// started for their realm, again by an offset derived from their UUID, so enabling the rotation does not rotate all of
+// them at once.
+public class SecretRotationTask implements ScheduledTask {
+    public static final String TASK_NAME = "self-service-clients-secret-rotation";
+
+    private static final Logger logger = Logger.getLogger(SecretRotationTask.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final SecretRotationStatus status;
+    // all durations in seconds
+    private final long period;
+    private final long jitter;
+    private final int gracePeriod;
+    private final int batchSize;
+    private final int maxPerRun;
+
+    public SecretRotationTask(KeycloakSessionFactory sessionFactory, SecretRotationStatus status, long period, long jitter,
+                              int gracePeriod, int batchSize, int maxPerRun) {
+        this.sessionFactory = sessionFactory;
+        this.status = status;
+        this.period = period;
+        this.jitter = Math.min(jitter, period);
+        this.gracePeriod = gracePeriod;
+        this.batchSize = batchSize;
+        this.maxPerRun = maxPerRun;
+    }
+
+    @Override
+    public String getTaskName() {
+        return TASK_NAME;
+    }
+
+    // The session of the runner is only used to list the realms, the batches are run in their own transactions
+    @Override
+    public void run(KeycloakSession session) {
+        final List<String> realmIds = session.realms().getRealmsStream().map(RealmModel::getId).toList();
+
+        status.started(System.currentTimeMillis());
+        long rotated = 0;
+        try {
+            for (String realmId : realmIds) {
+                if (rotated >= maxPerRun) {
+                    logger.debugf("Rotated the maximum of %d self service client secrets, continuing with the next run", maxPerRun);
+                    break;
+                }
+                rotated += rotateRealm(realmId, maxPerRun - rotated);
+            }
+        } finally {
+            status.finished(System.currentTimeMillis());
+        }
+        logger.debugf("Rotated %d self service client secrets of %d realms", rotated, realmIds.size());
+    }
+
+    private long rotateRealm(String realmId, long maxRotations) {
+        final Integer since = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> getSince(session, realmId));
+        if (since == null) {
+            return 0;
+        }
+        long checked = 0;
+        long rotated = 0;
+        long failed = 0;
+        String lastId = "";
+        while (rotated < maxRotations) {
+            final String afterId = lastId;
+            final List<Candidate> candidates = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                    session -> readCandidates(session, realmId, afterId));
+            if (candidates.isEmpty()) {
+                break;
+            }
+            lastId = candidates.get(candidates.size() - 1).id();
+            checked += candidates.size();
+
+            final int now = Time.currentTime();
+            final List<String> due = new ArrayList<>();
+            for (Candidate candidate : candidates) {
+                if (due.size() < maxRotations - rotated && isDue(candidate.id(), candidate.secretCreationTime(), since, now)) {
+                    due.add(candidate.id());
+                }
+            }
+            if (!due.isEmpty()) {
+                try {
+                    rotated += KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                            session -> rotate(session, realmId, due, since));
+                } catch (RuntimeException exc) {
+                    logger.warnf(exc, "Could not rotate %d self service client secrets of realm %s", due.size(), realmId);
+                    failed += due.size();
+                }
+            }
+            status.progress(realmId, new SecretRotationStatus.RealmProgress(checked, rotated, failed));
+
+            if (candidates.size() < batchSize) {
+                break;
+            }
+        }
+        return rotated;
+    }
+
+    // Confidential clients owned by a user or group, with the creation time of their secret.
+    // Reads the tables directly, so clients which are not due do not end up in the realm cache.
+    private List<Candidate> readCandidates(KeycloakSession session, String realmId, String lastId) {
+        final EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        return em.createQuery("select c.id, t.value from ClientEntity c "
+                        + "left join c.attributes t on t.name = :creationTime "
+                        + "where c.realmId = :realmId and c.id > :lastId and c.publicClient = false and c.bearerOnly = false "
+                        + "and exists (select a.name from ClientAttributeEntity a where a.client = c "
+                        + "and (a.name like :userPrefix or a.name like :groupPrefix) and a.value = :value) "
+                        + "order by c.id", Object[].class)
+                .setParameter("creationTime", ClientSecretConstants.CLIENT_SECRET_CREATION_TIME)
+                .setParameter("realmId", realmId)
+                .setParameter("lastId", lastId)
+                .setParameter("userPrefix", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("groupPrefix", CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .setMaxResults(batchSize)
+                .getResultStream()
+                .map(row -> new Candidate((String) row[0], parseTime((String) row[1])))
+                .toList();
+    }
+
+    // Time the rotation started for the realm, stored on its first run. Null if the realm has been removed.
+    private static Integer getSince(KeycloakSession session, String realmId) {
+        final RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return null;
+        }
+        final Integer since = parseTime(realm.getAttribute(REALM_SECRET_ROTATION_SINCE_ATTRIBUTE));
+        if (since != null) {
+            return since;
+        }
+        final int now = Time.currentTime();
+        realm.setAttribute(REALM_SECRET_ROTATION_SINCE_ATTRIBUTE, Integer.toString(now));
+        return now;
+    }
+
+    private int rotate(KeycloakSession session, String realmId, List<String> clientIds, int since) {
+        final RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            return 0;
+        }
+        final EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        final int now = Time.currentTime();
+        int rotated = 0;
+        for (String clientId : clientIds) {
+            // Another node might have rotated the client since it was read. The lock is held until the transaction ends,
+            // and the attributes are loaded after taking it, so they include any concurrent rotation.
+            final ClientEntity entity = em.find(ClientEntity.class, clientId, LockModeType.PESSIMISTIC_WRITE);
+            if (entity == null) {
+                continue;
+            }
+            final Integer creationTime = entity.getAttributes().stream()
+                    .filter(attribute -> ClientSecretConstants.CLIENT_SECRET_CREATION_TIME.equals(attribute.getName()))
+                    .findFirst().map(attribute -> parseTime(attribute.getValue())).orElse(null);
+            if (!isDue(clientId, creationTime, since, now)) {
+                continue;
+            }
+
+            final ClientModel client = realm.getClientById(clientId);
+            if (client == null || client.isPublicClient() || client.isBearerOnly()) {
+                continue;
+            }
+            rotate(client, now);
+            new ClientChangeLog(session).recordChange(client);
+            rotated++;
+        }
+        return rotated;
+    }
+
+    // based on org.keycloak.services.clientpolicy.executor.ClientSecretRotationExecutor
+    private void rotate(ClientModel client, int now) {
+        final OIDCClientSecretConfigWrapper wrapper = OIDCClientSecretConfigWrapper.fromClientModel(client);
+        if (gracePeriod > 0) {
+            wrapper.setClientRotatedSecret(client.getSecret());
+            wrapper.setClientRotatedSecretCreationTime();
+            wrapper.setClientRotatedSecretExpirationTime(now + gracePeriod);
+        } else {
+            wrapper.removeClientSecretRotated();
+        }
+        // also sets the creation time of the new secret
+        KeycloakModelUtils.generateSecret(client);
+        logger.debugf("Rotated secret of self service client %s in realm %s", client.getClientId(), client.getRealm().getName());
+    }
+
+    // Due at the end of the period, minus an offset within the jitter window which stays the same for each client.
+    // Clients without a creation time are due at an offset within the first period since the rotation started.
+    private boolean isDue(String clientId, Integer secretCreationTime, int since, int now) {
+        if (secretCreationTime == null) {
+            return (long) since + Math.floorMod(clientId.hashCode(), period) <= now;
+        }
+        final long offset = jitter > 0 ? Math.floorMod(clientId.hashCode(), jitter) : 0;
+        return (long) secretCreationTime + period - offset <= now;
+    }
+
+    private static Integer parseTime(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException exc) {
+            return null;
+        }
+    }
+
+    private record Candidate(String id, Integer secretCreationTime) {}
+}
@@ -0,0 +1,292 @@
+package de.mixxplorer.keycloak.ssc.search;
+
+import de.mixxplorer.keycloak.ssc.ownership.ClientOwners;
+import de.mixxplorer.keycloak.ssc.ownership.ClientSort;
+import de.mixxplorer.keycloak.ssc.ownership.OwnershipIndex;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+
+// In-memory search index over the self service clients of a realm, holding the searchable fields (client ID, name,
+// description, redirect URIs and web origins) in lower case together with the owners of each client. A search only
+// scans the clients of the user and its groups, without loading any client model.
+// The index of a realm is loaded from the database on its first search, reading the client table and the attributes
+// of self service clients only. Afterward, it is updated per client once the transaction of a change committed
+// (see SelfServiceProviderFactory). As provider events are only fired on the node doing the change, the index of a
+// realm is additionally loaded again after a configurable time.
+public class ClientSearchIndex {
+    private static final String GROUP_KEY_PREFIX = OwnershipIndex.getGroupKey("");
+    // self service clients, i.e. clients with at least one owner attribute
+    private static final String SSC_CLIENTS = "select a.client.id from ClientAttributeEntity a where a.client.realmId = :realmId "
+            + "and (a.name like :userPrefix or a.name like :groupPrefix) and a.value = :value";
+
+    private final Map<String, RealmIndex> realms = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    public ClientSearchIndex(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Indexed fields of a single client.
+     *
+     * @param created creation time according to the ownership index, null if unknown
+     * @param values searchable fields in lower case
+     */
+    public record Entry(String id, String clientId, String name, Long created, Set<String> owners, List<String> values) {
+        static Entry of(ClientModel client, Long created) {
+            final List<String> values = new ArrayList<>();
+            addValue(values, client.getClientId());
+            addValue(values, client.getName());
+            addValue(values, client.getDescription());
+            client.getRedirectUris().forEach(uri -> addValue(values, uri));
+            client.getWebOrigins().forEach(origin -> addValue(values, origin));
+            return new Entry(client.getId(), client.getClientId(), client.getName(), created,
+                    OwnershipIndex.getOwnerKeys(client), List.copyOf(values));
+        }
+
+        boolean matches(String query, boolean prefix) {
+            for (String value : values) {
+                if (prefix ? value.startsWith(query) : value.contains(query)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Searches the clients of a user and its groups.
+     *
+     * @param query search term, matched case-insensitive against every indexed field
+     * @param prefix whether fields have to start with the query, otherwise they have to contain it
+     * @return all matching clients, ordered like the client list
+     */
+    public List<Entry> search(KeycloakSession session, RealmModel realm, ClientOwners owners, String query, boolean prefix,
+                              ClientSort sort, boolean descending) {
+        final String normalizedQuery = normalize(query);
+        final RealmIndex index = getRealmIndex(session, realm);
+        final Set<String> seen = new HashSet<>();
+        final List<Entry> matches = new ArrayList<>();
+        for (String ownerKey : owners.getIndexKeys()) {
+            for (String clientUuid : index.getClientIds(ownerKey)) {
+                final Entry entry = index.entries.get(clientUuid);
+                if (entry != null && seen.add(clientUuid) && entry.matches(normalizedQuery, prefix)) {
+                    matches.add(entry);
+                }
+            }
+        }
+        matches.sort(getComparator(sort, descending));
+        return matches;
+    }
+
+    // Updates the entry of the client once the transaction of the session committed. The fields are read now, as the
+    // model must not be used after its transaction.
+    public void update(KeycloakSession session, ClientModel client) {
+        final String realmId = client.getRealm().getId();
+        final Entry entry = Entry.of(client, Time.currentTimeMillis());
+        session.getTransactionManager().enlistAfterCompletion(new AfterCommit(() -> {
+            final RealmIndex index = realms.get(realmId);
+            if (index == null) {
+                // loaded including the change on its first search
+                return;
+            }
+            if (entry.owners().isEmpty()) {
+                index.remove(entry.id());
+            } else {
+                index.put(entry);
+            }
+        }));
+    }
+
+    public void remove(KeycloakSession session, ClientModel client) {
+        final String realmId = client.getRealm().getId();
+        final String clientUuid = client.getId();
+        session.getTransactionManager().enlistAfterCompletion(new AfterCommit(() -> {
+            final RealmIndex index = realms.get(realmId);
+            if (index != null) {
+                index.remove(clientUuid);
+            }
+        }));
+    }
+
+    public void invalidate(String realmId) {
+        realms.remove(realmId);
+    }
+
+    // Concurrent searches on a missing or expired index may load it twice, the last one wins
+    private RealmIndex getRealmIndex(KeycloakSession session, RealmModel realm) {
+        final long now = Time.currentTimeMillis();
+        RealmIndex index = realms.get(realm.getId());
+        if (index == null || index.loadedAt + ttlMillis < now) {
+            index = load(session, realm, now);
+            realms.put(realm.getId(), index);
+        }
+        return index;
+    }
+
+    private static RealmIndex load(KeycloakSession session, RealmModel realm, long now) {
+        final EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+
+        final Map<String, Set<String>> owners = new HashMap<>();
+        loadOwners(em, realm, CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX, "", owners);
+        loadOwners(em, realm, CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX, GROUP_KEY_PREFIX, owners);
+
+        final Map<String, Long> created = new HashMap<>();
+        em.createQuery("select o.clientId, min(o.createdTimestamp) from ClientOwnerEntity o where o.realmId = :realmId "
+                        + "group by o.clientId", Object[].class)
+                .setParameter("realmId", realm.getId())
+                .getResultStream()
+                .forEach(row -> created.put((String) row[0], (Long) row[1]));
+
+        final Map<String, List<String>> values = new HashMap<>();
+        final Map<String, String[]> names = new HashMap<>();
+        sscQuery(em, realm, "select c.id, c.clientId, c.name, c.description from ClientEntity c where c.realmId = :realmId "
+                + "and c.id in (" + SSC_CLIENTS + ")")
+                .forEach(row -> {
+                    final List<String> clientValues = values.computeIfAbsent((String) row[0], id -> new ArrayList<>());
+                    addValue(clientValues, (String) row[1]);
+                    addValue(clientValues, (String) row[2]);
+                    addValue(clientValues, (String) row[3]);
+                    names.put((String) row[0], new String[] {(String) row[1], (String) row[2]});
+                });
+        for (String collection : List.of("redirectUris", "webOrigins")) {
+            sscQuery(em, realm, "select c.id, u from ClientEntity c join c." + collection + " u where c.realmId = :realmId "
+                    + "and c.id in (" + SSC_CLIENTS + ")")
+                    .forEach(row -> {
+                        final List<String> clientValues = values.get((String) row[0]);
+                        if (clientValues != null) {
+                            addValue(clientValues, (String) row[1]);
+                        }
+                    });
+        }
+
+        final RealmIndex index = new RealmIndex(now);
+        names.forEach((clientUuid, name) -> index.put(new Entry(clientUuid, name[0], name[1], created.get(clientUuid),
+                Set.copyOf(owners.get(clientUuid)), List.copyOf(values.get(clientUuid)))));
+        return index;
+    }
+
+    private static void loadOwners(EntityManager em, RealmModel realm, String attributePrefix, String keyPrefix,
+                                   Map<String, Set<String>> owners) {
+        em.createQuery("select a.client.id, a.name from ClientAttributeEntity a "
+                        + "where a.client.realmId = :realmId and a.name like :prefix and a.value = :value", Object[].class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("prefix", attributePrefix + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                .getResultStream()
+                .forEach(row -> owners.computeIfAbsent((String) row[0], id -> new HashSet<>())
+                        .add(keyPrefix + ((String) row[1]).substring(attributePrefix.length())));
+    }
+
+    private static Stream<Object[]> sscQuery(EntityManager em, RealmModel realm, String jpql) {
+        final TypedQuery<Object[]> query = em.createQuery(jpql, Object[].class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("userPrefix", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("groupPrefix", CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE);
+        return query.getResultStream();
+    }
+
+    // same order as the ownership index uses for client lists
+    private static Comparator<Entry> getComparator(ClientSort sort, boolean descending) {
+        final Comparator<Entry> comparator = switch (sort) {
+            case CLIENT_ID -> Comparator.comparing(Entry::clientId, Comparator.nullsFirst(Comparator.naturalOrder()));
+            case NAME -> Comparator.comparing(Entry::name, Comparator.nullsFirst(Comparator.naturalOrder()));
+            case CREATED -> Comparator.comparing(Entry::created, Comparator.nullsFirst(Comparator.naturalOrder()));
+            // sorted by the caller, as the usage is not part of the index
+            case LAST_USED, LOGINS -> (Comparator<Entry>) (a, b) -> 0;
+        };
+        final Comparator<Entry> stable = comparator.thenComparing(Entry::id);
+        return descending ? stable.reversed() : stable;
+    }
+
+    private static void addValue(List<String> values, String value) {
+        if (value != null && !value.isEmpty()) {
+            values.add(normalize(value));
+        }
+    }
+
+    private static String normalize(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    // Entries of one realm, and the clients per owner key. Writes are serialized, searches read without locking.
+    private static class RealmIndex {
+        private final long loadedAt;
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        private final Map<String, Set<String>> clientsByOwner = new ConcurrentHashMap<>();
+
+        RealmIndex(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+
+        Set<String> getClientIds(String ownerKey) {
+            return clientsByOwner.getOrDefault(ownerKey, Set.of());
+        }
+
+        // an updated client keeps its creation time
+        synchronized void put(Entry entry) {
+            final Entry previous = entries.get(entry.id());
+            final Entry stored = previous == null ? entry : new Entry(entry.id(), entry.clientId(), entry.name(),
+                    previous.created(), entry.owners(), entry.values());
+            remove(entry.id());
+            entries.put(stored.id(), stored);
+            stored.owners().forEach(ownerKey -> clientsByOwner.computeIfAbsent(ownerKey, key -> ConcurrentHashMap.newKeySet())
+                    .add(stored.id()));
+        }
+
+        synchronized void remove(String clientUuid) {
+            final Entry previous = entries.remove(clientUuid);
+            if (previous != null) {
+                previous.owners().forEach(ownerKey -> {
+                    final Set<String> clientIds = clientsByOwner.get(ownerKey);
+                    if (clientIds != null) {
+                        clientIds.remove(clientUuid);
+                        if (clientIds.isEmpty()) {
+                            clientsByOwner.remove(ownerKey);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static class AfterCommit extends AbstractKeycloakTransaction {
+        private final Runnable action;
+
+        AfterCommit(Runnable action) {
+            this.action = action;
+        }
+
+        @Override
+        protected void commitImpl() {
+            action.run();
+        }
+
+        @Override
+        protected void rollbackImpl() {
+            // nothing got changed
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package de.mixxplorer.keycloak.ssc.usage;
+
+/**
+ * Usage statistics of a self service client.
+ *
+ * @param lastUsed time in milliseconds the client was used last, 0 if it has not been used since tracking started
+ * @param logins number of logins within the last ClientUsageStore.WINDOW_DAYS days
+ */
+public record ClientUsage(long lastUsed, long logins) {
+    public static final ClientUsage NONE = new ClientUsage(0L, 0L);
+}
@@ -0,0 +1,72 @@
+package de.mixxplorer.keycloak.ssc.usage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Usage of clients counted on this node since the last flush, keyed by realm and client ID (not UUID) as given by the
+// events. Recording only touches memory without any lock, so it is cheap enough for the authentication path.
+// Counters of all clients are kept, whether they are self service clients is checked when flushing (see
+// ClientUsageStore). Their number is therefore bounded by the number of clients, counters of removed clients are
+// dropped via provider events.
+public class ClientUsageCounters {
+    private final Map<Key, Counter> counters = new ConcurrentHashMap<>();
+
+    private record Key(String realmId, String clientId) {}
+
+    private static class Counter {
+        final LongAdder logins = new LongAdder();
+        final AtomicLong lastUsed = new AtomicLong();
+    }
+
+    /**
+     * Counts a single use of a client.
+     *
+     * @param logins number of logins, 0 for other uses like token requests
+     */
+    public void record(String realmId, String clientId, long logins, long time) {
+        final Key key = new Key(realmId, clientId);
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new Counter());
+        }
+        if (logins > 0) {
+            counter.logins.add(logins);
+        }
+        counter.lastUsed.accumulateAndGet(time, Math::max);
+    }
+
+    /**
+     * Takes the usage counted since the last call. Usage recorded concurrently is either contained or left for the next
+     * call, so nothing gets lost.
+     *
+     * @return usage by client ID by realm ID, only containing clients used since the last call
+     */
+    public Map<String, Map<String, ClientUsage>> drain() {
+        final Map<String, Map<String, ClientUsage>> usage = new HashMap<>();
+        counters.forEach((key, counter) -> {
+            final long lastUsed = counter.lastUsed.getAndSet(0L);
+            final long logins = counter.logins.sumThenReset();
+            if (lastUsed > 0 || logins > 0) {
+                usage.computeIfAbsent(key.realmId(), realmId -> new HashMap<>())
+                        .put(key.clientId(), new ClientUsage(lastUsed, logins));
+            }
+        });
+        return usage;
+    }
+
+    // Gives back usage, which could not be flushed, so it is retried with the next flush
+    public void restore(String realmId, Map<String, ClientUsage> usage) {
+        usage.forEach((clientId, clientUsage) -> record(realmId, clientId, clientUsage.logins(), clientUsage.lastUsed()));
+    }
+
+    public void remove(String realmId, String clientId) {
+        counters.remove(new Key(realmId, clientId));
+    }
+
+    public void removeRealm(String realmId) {
+        counters.keySet().removeIf(key -> key.realmId().equals(realmId));
+    }
+}
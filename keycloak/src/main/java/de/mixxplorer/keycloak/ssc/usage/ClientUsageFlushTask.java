@@ -0,0 +1,75 @@
+package de.mixxplorer.keycloak.ssc.usage;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Writes the usage counted on this node to the database. Runs on every node, as each node flushes its own counters.
+// Clients are written in batches, each in its own transaction, so a failing batch only delays its usage until the next
+// flush. Once a day, each node additionally removes the login counts outside the window.
+public class ClientUsageFlushTask implements Runnable {
+    public static final String TASK_NAME = "self-service-clients-usage-flush";
+
+    private static final Logger logger = Logger.getLogger(ClientUsageFlushTask.class);
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final ClientUsageCounters counters;
+    private final int batchSize;
+
+    // day of the last removal of expired login counts by this node
+    private long cleanedUpDay = -1;
+
+    public ClientUsageFlushTask(KeycloakSessionFactory sessionFactory, ClientUsageCounters counters, int batchSize) {
+        this.sessionFactory = sessionFactory;
+        this.counters = counters;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    @Override
+    public void run() {
+        final long now = Time.currentTimeMillis();
+        flush(now);
+
+        if (now / DAY_MILLIS != cleanedUpDay) {
+            try {
+                final int removed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                        session -> new ClientUsageStore(session).removeExpired(now));
+                cleanedUpDay = now / DAY_MILLIS;
+                logger.debugf("Removed %d expired login counts of self service clients", removed);
+            } catch (RuntimeException exc) {
+                logger.warn("Could not remove expired login counts of self service clients", exc);
+            }
+        }
+    }
+
+    private void flush(long now) {
+        int flushed = 0;
+        for (Map.Entry<String, Map<String, ClientUsage>> realmUsage : counters.drain().entrySet()) {
+            final String realmId = realmUsage.getKey();
+            final List<String> clientIds = new ArrayList<>(realmUsage.getValue().keySet());
+            for (int start = 0; start < clientIds.size(); start += batchSize) {
+                final Map<String, ClientUsage> batch = new HashMap<>();
+                clientIds.subList(start, Math.min(start + batchSize, clientIds.size()))
+                        .forEach(clientId -> batch.put(clientId, realmUsage.getValue().get(clientId)));
+                try {
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                            session -> new ClientUsageStore(session).add(realmId, batch, now));
+                    flushed += batch.size();
+                } catch (RuntimeException exc) {
+                    logger.warnf(exc, "Could not flush usage of %d clients in realm %s, retrying with the next flush",
+                            batch.size(), realmId);
+                    counters.restore(realmId, batch);
+                }
+            }
+        }
+        logger.tracef("Flushed usage of %d clients", flushed);
+    }
+}
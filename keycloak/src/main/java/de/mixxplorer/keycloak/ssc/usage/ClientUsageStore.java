@@ -0,0 +1,200 @@
+package de.mixxplorer.keycloak.ssc.usage;
+
+import de.mixxplorer.keycloak.ssc.jpa.ClientLoginsEntity;
+import de.mixxplorer.keycloak.ssc.jpa.ClientUsageEntity;
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX;
+import static de.mixxplorer.keycloak.ssc.Constants.CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE;
+
+// Usage statistics of self service clients: the time each client was used last, and its logins per day for the last
+// WINDOW_DAYS days. Every node adds the usage it counted since its previous flush (see ClientUsageFlushTask).
+// Existing rows are changed with relative updates, so flushes of different nodes add up. If two nodes insert the row of
+// the same client or day concurrently, the batch of one of them fails and is retried with its next flush.
+public class ClientUsageStore {
+    public static final int WINDOW_DAYS = 30;
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    // keeps IN lists below the parameter limits of all supported databases
+    private static final int MAX_IN_PARAMETERS = 500;
+    private static final String SESSION_ATTRIBUTE = ClientUsageStore.class.getName();
+
+    private final EntityManager em;
+
+    public ClientUsageStore(KeycloakSession session) {
+        this.em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Adds usage counted for clients of a realm. Usage of clients, which are no self service clients, is dropped.
+     *
+     * @param usage usage by client ID (not UUID)
+     * @param now current time in milliseconds, logins are counted for its day
+     */
+    public void add(String realmId, Map<String, ClientUsage> usage, long now) {
+        final long day = now / DAY_MILLIS;
+        for (List<String> clientIds : partition(usage.keySet())) {
+            em.createQuery("select c.clientId, c.id from ClientEntity c "
+                            + "where c.realmId = :realmId and c.clientId in :clientIds and exists ("
+                            + "select a.name from ClientAttributeEntity a where a.client = c "
+                            + "and (a.name like :userPrefix or a.name like :groupPrefix) and a.value = :value)", Object[].class)
+                    .setParameter("realmId", realmId)
+                    .setParameter("clientIds", clientIds)
+                    .setParameter("userPrefix", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                    .setParameter("groupPrefix", CLIENT_GROUP_SSC_MANAGER_ATTRIBUTE_PREFIX + "%")
+                    .setParameter("value", CLIENT_USER_SSC_MANAGER_ATTRIBUTE_VALUE)
+                    .getResultList()
+                    .forEach(row -> {
+                        final ClientUsage clientUsage = usage.get((String) row[0]);
+                        final String clientUuid = (String) row[1];
+                        if (clientUsage.lastUsed() > 0) {
+                            updateLastUsed(realmId, clientUuid, clientUsage.lastUsed());
+                        }
+                        if (clientUsage.logins() > 0) {
+                            addLogins(realmId, clientUuid, day, clientUsage.logins());
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Returns the usage of clients.
+     *
+     * @param now current time in milliseconds, the logins of the last WINDOW_DAYS days including its day are counted
+     * @return usage by client UUID, containing all given clients
+     */
+    public Map<String, ClientUsage> getUsage(Collection<String> clientUuids, long now) {
+        final Map<String, Long> lastUsed = new HashMap<>();
+        final Map<String, Long> logins = new HashMap<>();
+        for (List<String> ids : partition(clientUuids)) {
+            em.createNamedQuery("sscUsageByIds", ClientUsageEntity.class)
+                    .setParameter("ids", ids)
+                    .getResultStream()
+                    .forEach(entity -> lastUsed.put(entity.getId(), entity.getLastUsed()));
+            em.createNamedQuery("sscLoginsByClients", Object[].class)
+                    .setParameter("clientIds", ids)
+                    .setParameter("since", now / DAY_MILLIS - (WINDOW_DAYS - 1))
+                    .getResultStream()
+                    .forEach(row -> logins.put((String) row[0], ((Number) row[1]).longValue()));
+        }
+
+        final Map<String, ClientUsage> usage = new HashMap<>();
+        for (String clientUuid : clientUuids) {
+            usage.put(clientUuid, new ClientUsage(lastUsed.getOrDefault(clientUuid, 0L), logins.getOrDefault(clientUuid, 0L)));
+        }
+        return usage;
+    }
+
+    /**
+     * Returns the usage of a client for the current request. The usage of clients preloaded for the request is taken
+     * from the session, others are loaded one by one.
+     */
+    public static ClientUsage get(KeycloakSession session, ClientModel client, long now) {
+        final Map<String, ClientUsage> loaded = getLoaded(session);
+        final ClientUsage usage = loaded.get(client.getId());
+        if (usage != null) {
+            return usage;
+        }
+        final ClientUsage clientUsage = new ClientUsageStore(session).getUsage(List.of(client.getId()), now).get(client.getId());
+        loaded.put(client.getId(), clientUsage);
+        return clientUsage;
+    }
+
+    // Loads the usage of multiple clients of the current request at once, e.g. of the clients of a page
+    public static Map<String, ClientUsage> preload(KeycloakSession session, Collection<String> clientUuids, long now) {
+        final Map<String, ClientUsage> loaded = getLoaded(session);
+        final List<String> missing = clientUuids.stream().filter(clientUuid -> !loaded.containsKey(clientUuid)).toList();
+        if (!missing.isEmpty()) {
+            loaded.putAll(new ClientUsageStore(session).getUsage(missing, now));
+        }
+        return loaded;
+    }
+
+    public void removeClient(String clientUuid) {
+        final ClientUsageEntity entity = em.find(ClientUsageEntity.class, clientUuid);
+        if (entity != null) {
+            em.remove(entity);
+        }
+        em.createNamedQuery("sscDeleteLoginsByClient").setParameter("clientId", clientUuid).executeUpdate();
+    }
+
+    public void removeRealm(String realmId) {
+        em.createNamedQuery("sscDeleteUsageByRealm").setParameter("realmId", realmId).executeUpdate();
+        em.createNamedQuery("sscDeleteLoginsByRealm").setParameter("realmId", realmId).executeUpdate();
+    }
+
+    // Removes the login counts of days outside the window, returns the number of removed rows
+    public int removeExpired(long now) {
+        return em.createNamedQuery("sscDeleteExpiredLogins")
+                .setParameter("before", now / DAY_MILLIS - (WINDOW_DAYS - 1))
+                .executeUpdate();
+    }
+
+    private void updateLastUsed(String realmId, String clientUuid, long lastUsed) {
+        final int updated = em.createNamedQuery("sscUpdateLastUsed")
+                .setParameter("id", clientUuid)
+                .setParameter("lastUsed", lastUsed)
+                .executeUpdate();
+        // either there is no row yet, or another node stored a later use already
+        if (updated == 0 && em.find(ClientUsageEntity.class, clientUuid) == null) {
+            final ClientUsageEntity entity = new ClientUsageEntity();
+            entity.setId(clientUuid);
+            entity.setRealmId(realmId);
+            entity.setLastUsed(lastUsed);
+            em.persist(entity);
+        }
+    }
+
+    private void addLogins(String realmId, String clientUuid, long day, long logins) {
+        final String id = getId(clientUuid, day);
+        final int updated = em.createNamedQuery("sscAddLogins")
+                .setParameter("id", id)
+                .setParameter("logins", logins)
+                .executeUpdate();
+        if (updated == 0) {
+            final ClientLoginsEntity entity = new ClientLoginsEntity();
+            entity.setId(id);
+            entity.setRealmId(realmId);
+            entity.setClientId(clientUuid);
+            entity.setDay(day);
+            entity.setLogins(logins);
+            em.persist(entity);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ClientUsage> getLoaded(KeycloakSession session) {
+        Map<String, ClientUsage> loaded = (Map<String, ClientUsage>) session.getAttribute(SESSION_ATTRIBUTE);
+        if (loaded == null) {
+            loaded = new HashMap<>();
+            session.setAttribute(SESSION_ATTRIBUTE, loaded);
+        }
+        return loaded;
+    }
+
+    private static List<List<String>> partition(Collection<String> values) {
+        final List<String> list = new ArrayList<>(values);
+        final List<List<String>> partitions = new ArrayList<>();
+        for (int start = 0; start < list.size(); start += MAX_IN_PARAMETERS) {
+            partitions.add(list.subList(start, Math.min(start + MAX_IN_PARAMETERS, list.size())));
+        }
+        return partitions;
+    }
+
+    private static String getId(String clientUuid, long day) {
+        return UUID.nameUUIDFromBytes((clientUuid + "/" + day).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}